@@ -0,0 +1,280 @@
+package in.kevinj.analytics.networks;
+
+/**
+ * Search engine behind ProperNounProform.isPortmanteauOrAcronym().
+ *
+ * Walks the same moves the original backtracking matcher tried, i.e. staying
+ * on the current token, moving onto the next token, and jumping to the next
+ * capital letter in the current token, and tries alternatives in the same
+ * order, but over the state space of (abbreviation index, token, character
+ * offset, matched in token).
+ *
+ * The original matcher kept the m of a failed walk when it backtracked to an
+ * alternative, so whether a state fails, and the m it leaves behind, only
+ * depend on the state. Every state is remembered with the m it left behind
+ * once it fails, and is never walked again, so the time taken is bounded by
+ * the product of the lengths of the two names no matter how many
+ * alternatives there are.
+ *
+ * Not thread safe. The scratch buffers are reused between calls so that the
+ * search does not allocate once they are large enough.
+ */
+public class AcronymMatcher {
+	private char[] abbrev;
+	private int abbrevLength;
+	private char[][] fullName;
+	private int tokens;
+
+	// Per position, where a position is a character offset within a token.
+	// Each token has one extra position past its last character.
+	private int[] tokenStart = new int[16];
+	private boolean[] important = new boolean[16];
+	private int[] tokenOf = new int[64];
+	private int[] nextCapital = new int[64];
+	private int positions;
+
+	// Per state, where a state is a position in the abbreviation, a position
+	// in the full name, and whether any character was matched in the token.
+	private long[] expanded = new long[64];
+	private long[] failedMatched = new long[64];
+	// The states being walked, each the move taken out of the one below it.
+	private int[] walk = new int[64];
+	private int[] walkAlternatives = new int[64];
+	private int walkSize;
+	// Alternatives, without whether any character was matched.
+	private int[] alternatives = new int[64];
+	private int alternativesSize;
+	private int pushed, popped;
+
+	private void prepare(char[] abbrev, char[][] fullName) {
+		this.abbrev = abbrev;
+		this.abbrevLength = abbrev.length;
+		this.fullName = fullName;
+		this.tokens = fullName.length;
+
+		if (tokenStart.length < tokens) {
+			tokenStart = new int[Math.max(tokens, tokenStart.length * 2)];
+			important = new boolean[tokenStart.length];
+		}
+		positions = 0;
+		for (int j = 0; j < tokens; j++) {
+			tokenStart[j] = positions;
+			important[j] = NameNormalizer.isImportantToken(fullName[j]);
+			positions += fullName[j].length + 1;
+		}
+		if (tokenOf.length < positions) {
+			tokenOf = new int[Math.max(positions, tokenOf.length * 2)];
+			nextCapital = new int[tokenOf.length];
+		}
+		for (int j = 0; j < tokens; j++) {
+			char[] token = fullName[j];
+			int next = -1;
+			for (int k = token.length; k >= 0; k--) {
+				tokenOf[tokenStart[j] + k] = j;
+				nextCapital[tokenStart[j] + k] = next;
+				if (k < token.length && Character.isUpperCase(token[k]))
+					next = k;
+			}
+		}
+
+		int states = (abbrevLength + 1) * positions * 2;
+		int words = (states + 63) >>> 6;
+		if (expanded.length < words) {
+			expanded = new long[Math.max(words, expanded.length * 2)];
+			failedMatched = new long[expanded.length];
+		} else {
+			for (int w = 0; w < words; w++) {
+				expanded[w] = 0;
+				failedMatched[w] = 0;
+			}
+		}
+		walkSize = 0;
+		alternativesSize = 0;
+		pushed = 0;
+		popped = 0;
+	}
+
+	private int position(int i, int j, int k) {
+		return i * positions + tokenStart[j] + k;
+	}
+
+	private static int state(int position, int m) {
+		return position * 2 + (m != 0 ? 1 : 0);
+	}
+
+	private static boolean isSet(long[] bits, int index) {
+		return (bits[index >>> 6] & (1L << index)) != 0;
+	}
+
+	private static void set(long[] bits, int index) {
+		bits[index >>> 6] |= 1L << index;
+	}
+
+	private void pushAlternative(int i, int j, int k) {
+		if (alternativesSize == alternatives.length) {
+			int[] grown = new int[alternatives.length * 2];
+			System.arraycopy(alternatives, 0, grown, 0, alternativesSize);
+			alternatives = grown;
+		}
+		alternatives[alternativesSize++] = position(i, j, k);
+	}
+
+	private void pushWalk(int state) {
+		if (walkSize == walk.length) {
+			int[] grown = new int[walk.length * 2];
+			System.arraycopy(walk, 0, grown, 0, walkSize);
+			walk = grown;
+			grown = new int[walkAlternatives.length * 2];
+			System.arraycopy(walkAlternatives, 0, grown, 0, walkSize);
+			walkAlternatives = grown;
+		}
+		walk[walkSize] = state;
+		walkAlternatives[walkSize] = alternativesSize;
+		walkSize++;
+		pushed++;
+	}
+
+	private static boolean isSkippable(char c) {
+		return c == ' ' || c == '.';
+	}
+
+	/**
+	 * Pushes the alternatives the original matcher would have pushed from one
+	 * state.
+	 *
+	 * @return the state the original matcher would have moved to, or -1 if
+	 * it would have had to backtrack
+	 */
+	private int expand(int i, int j, int k, int m) {
+		char[] token = fullName[j];
+		char a = abbrev[i];
+		boolean hasNextCharacter = k < token.length;
+		int nextCapital = this.nextCapital[tokenStart[j] + k];
+		int thisOrNextCapital = hasNextCharacter && Character.isUpperCase(token[k]) ? k : nextCapital;
+
+		// Can try to stay on the current word
+		boolean option1 = hasNextCharacter && (Character.toLowerCase(a) == Character.toLowerCase(token[k]));
+		// Can try to move onto the next word
+		boolean option2 = j + 1 < tokens && (m != 0 || !important[j]);
+		// Period can also jump to next capital letter in the current word
+		boolean option3 = m != 0 && isSkippable(a) && nextCapital != -1;
+		// Capital letters can also jump to next capital letter in the word
+		boolean option4 = m != 0 && Character.isUpperCase(a) && nextCapital != -1;
+
+		if (Character.isUpperCase(a)) {
+			if (option1 && Character.isLowerCase(token[k]))
+				// "TWA"/="Time Warner". "MCI"/="McDermott International".
+				option1 = false;
+			if (option2 && thisOrNextCapital != -1 && token[thisOrNextCapital] != a)
+				// Have to go to next capital letter first.
+				option2 = false;
+			if (option4 && hasNextCharacter && Character.isUpperCase(token[k]))
+				// Must not skip capital letter in the current word
+				option4 = false;
+		}
+
+		if (option1) {
+			if (option2) {
+				int advance = 1;
+				do {
+					char[] next = fullName[j + advance];
+					if (next.length != 0 && Character.toLowerCase(a) == Character.toLowerCase(next[0]))
+						pushAlternative(i, j + advance, 0);
+					advance++;
+				} while (j + advance < tokens && !important[j + advance - 1]);
+			}
+			if (option3 && i + 1 < abbrevLength && Character.toUpperCase(abbrev[i + 1]) == token[nextCapital])
+				pushAlternative(i + 1, j, nextCapital);
+			if (option4 && Character.toUpperCase(a) == token[nextCapital])
+				pushAlternative(i, j, nextCapital);
+
+			// Stay on the current token
+			return state(position(i + 1, j, k + 1), 1);
+		} else if (option2) {
+			if (option3 && i + 1 < abbrevLength && Character.toUpperCase(abbrev[i + 1]) == token[nextCapital])
+				pushAlternative(i + 1, j, nextCapital);
+			if (option4 && Character.toUpperCase(a) == token[nextCapital])
+				pushAlternative(i, j, nextCapital);
+
+			// Move onto the next token
+			return state(position(isSkippable(a) ? i + 1 : i, j + 1, 0), 0);
+		} else if (option3) {
+			if (option4 && Character.toUpperCase(a) == token[nextCapital])
+				pushAlternative(i, j, nextCapital);
+
+			return state(position(i + 1, j, nextCapital), 0);
+		} else if (option4) {
+			return state(position(i, j, nextCapital), 0);
+		} else if (isSkippable(a)) {
+			// Try ignoring the character
+			return state(position(i + 1, j, k), m);
+		} else {
+			return -1;
+		}
+	}
+
+	/**
+	 * @param abbrev the abbreviation, with removePunct() already applied
+	 * @param fullName the tokens of the full name, with removePunct()
+	 * already applied
+	 * @return if negative, {@code abbrev} does not abbreviate
+	 * {@code fullName}. Otherwise, returns the number of tokens that remain in
+	 * the full name not found in the abbreviation. Alternatives are tried in
+	 * the same order as the original matcher and the first walk to consume
+	 * the entire abbreviation decides the result.
+	 */
+	public int match(char[] abbrev, char[][] fullName) {
+		if (fullName.length == 0) {
+			if (AliasStatistics.isEnabled())
+				AliasStatistics.acronymMatch(0, 0);
+			return abbrev.length == 0 ? 0 : -1;
+		}
+
+		prepare(abbrev, fullName);
+		int remaining = -1;
+		int state = state(position(0, 0, 0), 0);
+		while (true) {
+			// Follow the moves out of the state until the walk either consumes
+			// the entire abbreviation or has to backtrack.
+			int m = 0;
+			while (state != -1) {
+				int i = (state >>> 1) / positions;
+				int pos = (state >>> 1) % positions;
+				int j = tokenOf[pos];
+				int k = pos - tokenStart[j];
+				if (i == abbrevLength) {
+					remaining = tokens - j - (k != 0 ? 1 : 0);
+					break;
+				}
+				if (isSet(expanded, state)) {
+					// Failed before, and left behind the same m as then.
+					m = isSet(failedMatched, state) ? 1 : 0;
+					break;
+				}
+				set(expanded, state);
+				pushWalk(state);
+				m = state & 1;
+				state = expand(i, j, k, m);
+			}
+			if (remaining != -1)
+				break;
+
+			// Like the original matcher, an alternative starts out with the
+			// m of the walk that just failed.
+			while (walkSize != 0 && alternativesSize == walkAlternatives[walkSize - 1]) {
+				walkSize--;
+				if (m != 0)
+					set(failedMatched, walk[walkSize]);
+			}
+			if (walkSize == 0)
+				break;
+			state = state(alternatives[--alternativesSize], m);
+			popped++;
+		}
+		this.abbrev = null;
+		this.fullName = null;
+		if (AliasStatistics.isEnabled())
+			AliasStatistics.acronymMatch(pushed, popped);
+		return remaining;
+	}
+}
@@ -0,0 +1,561 @@
+package in.kevinj.analytics.networks;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Blocking index over every named entity found so far so that a new name is
+ * only compared against the handful of entities that could possibly accept it
+ * in ProperNounProform.addAlias().
+ *
+ * Token deletion matches are found exactly by walking tries of case folded
+ * tokens. Each key for acronyms and portmanteaus is a necessary condition for
+ * addAlias() to succeed. Either way, the candidates are always a superset of
+ * the entities that would accept the name.
+ * Candidates are returned in the order the entities were added, so the first
+ * entity to accept a name is the same one that a scan over all entities would
+ * have found.
+ */
+public class AliasIndex {
+	// Names that are empty after removing punctuation
+	private static final char EMPTY = 'e';
+	// Acronym and portmanteau matches
+	private static final char FULL_SINGLE = 'S', FULL_PAIR = 'P', ABBREV_SINGLE = 's', ABBREV_PAIR = 'p', ANY = '*';
+	// Acronym and initialism matches
+	private static final char INITIALISM = 'I', ACRONYM = 'A';
+
+	/**
+	 * All caps, e.g. "RTC" and "A&P", or dotted, e.g. "U.S." and "S.p.A.".
+	 */
+	private static final Pattern ACRONYM_TOKEN = Pattern.compile("^([A-Z0-9&-]+|([A-Za-z]\\.)+[A-Za-z]?)$");
+	/**
+	 * Enumerating every subsequence of an acronym is only cheap if it's short.
+	 */
+	private static final int MAX_ACRONYM_LENGTH = 10;
+
+	private static final Comparator<Entry> DISCOVERY_ORDER = new Comparator<Entry>() {
+		@Override
+		public int compare(Entry a, Entry b) {
+			return a.order - b.order;
+		}
+	};
+
+	private static class Variant {
+		public final int length;
+		/**
+		 * The first letter of every important token and of the last token.
+		 * Any abbreviation of this variant must contain these in order.
+		 * Null if this variant can never be the full name of an abbreviation.
+		 */
+		public final char[] initials;
+		/**
+		 * The first letter of every token. Null if the last token is empty.
+		 */
+		public final char[] allInitials;
+		/**
+		 * Lower case characters that isPortmanteauOrAcronym() walks when this
+		 * variant is the abbreviation.
+		 */
+		public final char[] abbrev;
+		/**
+		 * Characters in the abbreviation that must be found in the full name.
+		 * Only spaces and periods may be ignored.
+		 */
+		public final char[] significant;
+		/**
+		 * Short all caps or dotted names. All of the initialisms they could
+		 * stand for are looked up in the hash index rather than searched for.
+		 */
+		public final boolean acronym;
+
+		public Variant(NameNormalizer.Variant name) {
+			length = name.name.length();
+			initials = initials(name.tokens);
+			allInitials = allInitials(name.tokens);
+			abbrev = new char[name.punct.length];
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < abbrev.length; i++) {
+				abbrev[i] = Character.toLowerCase(name.punct[i]);
+				if (abbrev[i] != ' ' && abbrev[i] != '.')
+					sb.append(abbrev[i]);
+			}
+			significant = sb.toString().toCharArray();
+			acronym = isAcronym(name.name, abbrev);
+		}
+
+		/**
+		 * Whether isPortmanteauOrAcronym() could possibly return 0 for these
+		 * two names, with the same choice of abbreviation it would make.
+		 *
+		 * @param theirs
+		 * @return
+		 */
+		public boolean mayAbbreviate(Variant theirs) {
+			if (length < theirs.length)
+				return theirs.initials != null && isSubsequence(theirs.initials, abbrev) && isSubsequence(significant, theirs.abbrev);
+			else
+				return initials != null && isSubsequence(initials, theirs.abbrev) && isSubsequence(theirs.significant, abbrev);
+		}
+	}
+
+	/**
+	 * Case folded token sequences shared by all entities, so that a single
+	 * walk finds every entity that a name could match by deleting tokens.
+	 */
+	private static class TokenTrie {
+		private final Map<String, TokenTrie> children = new HashMap<String, TokenTrie>();
+		private Set<Entry> terminals;
+
+		public TokenTrie get(String token) {
+			return children.get(token);
+		}
+
+		/**
+		 * @return entities whose sequence ends at this node. Null if none.
+		 */
+		public Set<Entry> getTerminals() {
+			return terminals;
+		}
+
+		public void add(String[] tokens, int from, int to, Entry e) {
+			TokenTrie node = this;
+			for (int i = from; i < to; i++) {
+				TokenTrie child = node.children.get(tokens[i]);
+				if (child == null) {
+					child = new TokenTrie();
+					node.children.put(tokens[i], child);
+				}
+				node = child;
+			}
+			if (node.terminals == null)
+				node.terminals = new HashSet<Entry>();
+			node.terminals.add(e);
+		}
+
+		/**
+		 * Removes a sequence added by add() and prunes any nodes left empty.
+		 *
+		 * @return whether this node is now empty
+		 */
+		public boolean remove(String[] tokens, int from, int to, Entry e) {
+			if (from == to) {
+				if (terminals != null && terminals.remove(e) && terminals.isEmpty())
+					terminals = null;
+			} else {
+				TokenTrie child = children.get(tokens[from]);
+				if (child != null && child.remove(tokens, from + 1, to, e))
+					children.remove(tokens[from]);
+			}
+			return terminals == null && children.isEmpty();
+		}
+
+		/**
+		 * Finds the node at the end of the given sequence.
+		 *
+		 * @return null if no sequence starts with the given tokens
+		 */
+		public TokenTrie find(String[] tokens, int from, int to) {
+			TokenTrie node = this;
+			for (int i = from; i < to && node != null; i++)
+				node = node.children.get(tokens[i]);
+			return node;
+		}
+	}
+
+	private static class Entry {
+		public final ProperNounProform.NamedEntity entity;
+		public final int order;
+		public List<String> keys;
+		public Variant[] variants;
+		/**
+		 * The folded tokens and deletion allowances that were added to the
+		 * tries, so that they can be removed again after the entity changes.
+		 */
+		public String[] tokens;
+		public int maxFrontDeletes, maxBackDeletes;
+
+		public Entry(ProperNounProform.NamedEntity entity, int order) {
+			this.entity = entity;
+			this.order = order;
+		}
+	}
+
+	private final Map<ProperNounProform.NamedEntity, Entry> entries;
+	private final Map<String, Set<Entry>> postings;
+	/**
+	 * Every span of each key that is left after deleting at most
+	 * maxFrontDeletes + 1 tokens from the front and maxBackDeletes + 1 tokens
+	 * from the back. Finds entities that are longer than the name.
+	 */
+	private final TokenTrie windows;
+	/**
+	 * The whole of each key. Finds entities that are shorter than the name.
+	 */
+	private final TokenTrie whole;
+	/**
+	 * Number of published initialisms that start with each prefix.
+	 */
+	private final Map<String, Integer> initialismPrefixes;
+
+	public AliasIndex() {
+		entries = new HashMap<ProperNounProform.NamedEntity, Entry>();
+		postings = new HashMap<String, Set<Entry>>();
+		windows = new TokenTrie();
+		whole = new TokenTrie();
+		initialismPrefixes = new HashMap<String, Integer>();
+	}
+
+	private static Variant[] variants(NameNormalizer.Form form) {
+		if (form.stripped == form.original)
+			return new Variant[] { new Variant(form.original) };
+		return new Variant[] { new Variant(form.original), new Variant(form.stripped) };
+	}
+
+	/**
+	 * isPortmanteauOrAcronym() can only skip a token that is unimportant, and
+	 * can only enter a token by matching its first letter. It must also end on
+	 * the last token.
+	 *
+	 * @param fullName
+	 * @return
+	 */
+	private static char[] initials(char[][] fullName) {
+		if (fullName.length == 0)
+			return new char[0];
+		if (fullName[fullName.length - 1].length == 0)
+			return null;
+
+		StringBuilder sb = new StringBuilder();
+		for (int j = 0; j < fullName.length - 1; j++)
+			if (NameNormalizer.isImportantToken(fullName[j]))
+				sb.append(Character.toLowerCase(fullName[j][0]));
+		sb.append(Character.toLowerCase(fullName[fullName.length - 1][0]));
+		return sb.toString().toCharArray();
+	}
+
+	private static char[] allInitials(char[][] fullName) {
+		if (fullName.length == 0 || fullName[fullName.length - 1].length == 0)
+			return null;
+
+		StringBuilder sb = new StringBuilder();
+		for (char[] token : fullName)
+			if (token.length != 0)
+				sb.append(Character.toLowerCase(token[0]));
+		return sb.toString().toCharArray();
+	}
+
+	private static boolean isAcronym(String name, char[] abbrev) {
+		int length = 0;
+		for (char c : abbrev)
+			if (c != ' ')
+				length++;
+		if (length == 0 || length > MAX_ACRONYM_LENGTH)
+			return false;
+
+		for (String token : name.split(" "))
+			if (!token.isEmpty() && !ACRONYM_TOKEN.matcher(token).matches())
+				return false;
+		return true;
+	}
+
+	/**
+	 * Every distinct subsequence of {@code chars}, ignoring spaces. If
+	 * {@code prefixes} is not null, only subsequences whose every prefix is in
+	 * {@code prefixes} are generated.
+	 *
+	 * @param chars
+	 * @param from
+	 * @param prefix
+	 * @param prefixes
+	 * @param found
+	 */
+	private static void subsequences(char[] chars, int from, StringBuilder prefix, Map<String, Integer> prefixes, Set<String> found) {
+		for (int i = from; i < chars.length; i++) {
+			if (chars[i] == ' ')
+				continue;
+
+			prefix.append(chars[i]);
+			String subsequence = prefix.toString();
+			if (prefixes == null || prefixes.containsKey(subsequence)) {
+				found.add(subsequence);
+				subsequences(chars, i + 1, prefix, prefixes, found);
+			}
+			prefix.setLength(prefix.length() - 1);
+		}
+	}
+
+	private static boolean isSubsequence(char[] needle, char[] haystack) {
+		int i = 0;
+		for (int j = 0; i < needle.length && j < haystack.length; j++)
+			if (needle[i] == haystack[j])
+				i++;
+		return i == needle.length;
+	}
+
+	private static String initialsKey(char[] initials, char single, char pair) {
+		if (initials.length == 0)
+			return String.valueOf(ANY);
+		if (initials.length == 1)
+			return new String(new char[] { single, initials[0] });
+		return new String(new char[] { pair, initials[0], initials[initials.length - 1] });
+	}
+
+	private static void abbrevKeys(char[] abbrev, char single, char pair, Collection<String> keys) {
+		for (int y = 0; y < abbrev.length; y++) {
+			if (abbrev[y] == ' ')
+				continue;
+			keys.add(new String(new char[] { single, abbrev[y] }));
+			for (int x = 0; x < y; x++)
+				if (abbrev[x] != ' ')
+					keys.add(new String(new char[] { pair, abbrev[x], abbrev[y] }));
+		}
+	}
+
+	private static List<String> keys(String[] tokens, Variant[] variants) {
+		Set<String> keys = new LinkedHashSet<String>();
+		if (tokens == null) {
+			// Nothing but the exact same name can match.
+			keys.add(String.valueOf(EMPTY));
+			return new ArrayList<String>(keys);
+		}
+
+		for (Variant v : variants) {
+			if (v.initials != null) {
+				keys.add(initialsKey(v.initials, FULL_SINGLE, FULL_PAIR));
+				// Raw and stripped key, with and without unimportant tokens.
+				if (v.initials.length != 0)
+					keys.add(INITIALISM + new String(v.initials));
+				if (v.allInitials.length != 0)
+					keys.add(INITIALISM + new String(v.allInitials));
+			}
+
+			if (v.acronym) {
+				Set<String> initialisms = new HashSet<String>();
+				subsequences(v.abbrev, 0, new StringBuilder(), null, initialisms);
+				for (String initialism : initialisms)
+					keys.add(ACRONYM + initialism);
+			} else {
+				abbrevKeys(v.abbrev, ABBREV_SINGLE, ABBREV_PAIR, keys);
+			}
+		}
+		return new ArrayList<String>(keys);
+	}
+
+	private Set<Entry> posting(char type, String token) {
+		return posting(type + token);
+	}
+
+	private Set<Entry> posting(String key) {
+		Set<Entry> posting = postings.get(key);
+		if (posting == null)
+			return Collections.emptySet();
+		return posting;
+	}
+
+	private void publish(Entry e) {
+		NameNormalizer.Form form = NameNormalizer.normalize(e.entity.key);
+		e.variants = variants(form);
+		e.keys = keys(form.folded, e.variants);
+		e.tokens = form.folded;
+		e.maxFrontDeletes = e.entity.maxFrontDeletes;
+		e.maxBackDeletes = e.entity.maxBackDeletes;
+		if (e.tokens != null) {
+			whole.add(e.tokens, 0, e.tokens.length, e);
+			for (int front = 0; front <= e.maxFrontDeletes + 1 && front < e.tokens.length; front++)
+				for (int back = 0; back <= e.maxBackDeletes + 1 && front < e.tokens.length - back; back++)
+					windows.add(e.tokens, front, e.tokens.length - back, e);
+		}
+		for (String key : e.keys) {
+			Set<Entry> posting = postings.get(key);
+			if (posting == null) {
+				posting = new HashSet<Entry>();
+				postings.put(key, posting);
+				if (key.charAt(0) == INITIALISM)
+					countPrefixes(key, 1);
+			}
+			posting.add(e);
+		}
+	}
+
+	private void countPrefixes(String initialism, int delta) {
+		for (int i = 2; i <= initialism.length(); i++) {
+			String prefix = initialism.substring(1, i);
+			Integer count = initialismPrefixes.get(prefix);
+			int newCount = (count == null ? 0 : count.intValue()) + delta;
+			if (newCount == 0)
+				initialismPrefixes.remove(prefix);
+			else
+				initialismPrefixes.put(prefix, Integer.valueOf(newCount));
+		}
+	}
+
+	private void unpublish(Entry e) {
+		if (e.tokens != null) {
+			whole.remove(e.tokens, 0, e.tokens.length, e);
+			for (int front = 0; front <= e.maxFrontDeletes + 1 && front < e.tokens.length; front++)
+				for (int back = 0; back <= e.maxBackDeletes + 1 && front < e.tokens.length - back; back++)
+					windows.remove(e.tokens, front, e.tokens.length - back, e);
+		}
+		for (String key : e.keys) {
+			Set<Entry> posting = postings.get(key);
+			posting.remove(e);
+			if (posting.isEmpty()) {
+				postings.remove(key);
+				if (key.charAt(0) == INITIALISM)
+					countPrefixes(key, -1);
+			}
+		}
+	}
+
+	public void add(ProperNounProform.NamedEntity ent) {
+		Entry e = new Entry(ent, entries.size());
+		entries.put(ent, e);
+		publish(e);
+	}
+
+	/**
+	 * Must be called whenever the key or the deletion allowances of an
+	 * entity change.
+	 *
+	 * @param ent
+	 */
+	public void update(ProperNounProform.NamedEntity ent) {
+		Entry e = entries.get(ent);
+		unpublish(e);
+		publish(e);
+	}
+
+	/**
+	 * Entities whose key is a span of {@code tokens} that is left after
+	 * deleting no more tokens than the entity allows.
+	 *
+	 * @param tokens
+	 * @param found
+	 */
+	private void findShorter(String[] tokens, Set<Entry> found) {
+		for (int front = 0; front < tokens.length; front++) {
+			TokenTrie node = whole;
+			for (int i = front; i < tokens.length && (node = node.get(tokens[i])) != null; i++) {
+				if (node.getTerminals() == null)
+					continue;
+
+				int back = tokens.length - i - 1;
+				for (Entry e : node.getTerminals())
+					if (front <= e.maxFrontDeletes + 1 && back <= e.maxBackDeletes + 1)
+						found.add(e);
+			}
+		}
+	}
+
+	/**
+	 * Returns, in discovery order, every entity that could accept
+	 * {@code name} as an alias.
+	 *
+	 * @param name
+	 * @return
+	 */
+	public List<ProperNounProform.NamedEntity> candidates(String name) {
+		Set<Entry> found = new HashSet<Entry>();
+		NameNormalizer.Form form = NameNormalizer.normalize(name);
+		String[] tokens = form.folded;
+		if (tokens == null) {
+			found.addAll(posting(EMPTY, ""));
+		} else {
+			// Entity is the longer name and loses tokens.
+			TokenTrie node = windows.find(tokens, 0, tokens.length);
+			if (node != null && node.getTerminals() != null)
+				found.addAll(node.getTerminals());
+			// Entity is the shorter name and name loses tokens.
+			findShorter(tokens, found);
+
+			Variant[] variants = variants(form);
+			Set<Entry> abbrevs = new HashSet<Entry>();
+			abbrevs.addAll(posting(ANY, ""));
+			for (Variant v : variants) {
+				// Name is the abbreviation.
+				if (v.acronym) {
+					// Only look up the initialisms that some entity published.
+					Set<String> initialisms = new HashSet<String>();
+					subsequences(v.abbrev, 0, new StringBuilder(), initialismPrefixes, initialisms);
+					for (String initialism : initialisms)
+						abbrevs.addAll(posting(INITIALISM, initialism));
+				} else {
+					Set<String> keys = new HashSet<String>();
+					abbrevKeys(v.abbrev, FULL_SINGLE, FULL_PAIR, keys);
+					for (String key : keys)
+						abbrevs.addAll(posting(key));
+				}
+				// Entity is the abbreviation.
+				if (v.initials != null) {
+					if (v.initials.length == 0) {
+						abbrevs.addAll(entries.values());
+					} else {
+						abbrevs.addAll(posting(initialsKey(v.initials, ABBREV_SINGLE, ABBREV_PAIR)));
+						abbrevs.addAll(posting(ACRONYM, new String(v.initials)));
+					}
+				}
+			}
+			for (Entry e : abbrevs)
+				if (!found.contains(e) && mayAbbreviate(e.variants, variants))
+					found.add(e);
+		}
+
+		List<Entry> sorted = new ArrayList<Entry>(found);
+		Collections.sort(sorted, DISCOVERY_ORDER);
+		List<ProperNounProform.NamedEntity> candidates = new ArrayList<ProperNounProform.NamedEntity>(sorted.size());
+		for (Entry e : sorted)
+			candidates.add(e.entity);
+		return candidates;
+	}
+
+	private static boolean mayAbbreviate(Variant[] ours, Variant[] theirs) {
+		for (Variant a : ours)
+			for (Variant b : theirs)
+				if (a.mayAbbreviate(b))
+					return true;
+		return false;
+	}
+
+	/**
+	 * Finds the first entity that accepts {@code name} as an alias and keeps
+	 * the index consistent with any changes addAlias() made to it.
+	 *
+	 * @param name
+	 * @return the entity that now includes {@code name}, or null if none did
+	 */
+	public ProperNounProform.NamedEntity addAlias(String name) {
+		for (ProperNounProform.NamedEntity prevFound : candidates(name)) {
+			if (ProperNounProform.addAlias(prevFound, name)) {
+				update(prevFound);
+				return prevFound;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Finds the first entity that ProperNounProform.merge() can fold
+	 * {@code ent} into. {@code ent} itself must not be in the index.
+	 *
+	 * @param ent
+	 * @return the entity that now includes {@code ent}, or null if none did
+	 */
+	public ProperNounProform.NamedEntity merge(ProperNounProform.NamedEntity ent) {
+		for (ProperNounProform.NamedEntity prevFound : candidates(ent.key)) {
+			if (ProperNounProform.merge(prevFound, ent)) {
+				update(prevFound);
+				return prevFound;
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,219 @@
+package in.kevinj.analytics.networks;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Resolves the company names mentioned across the corpus to named entities in
+ * two phases.
+ *
+ * First, the mentions in each document are only compared against the named
+ * entities found earlier in the same document. Documents share nothing in this
+ * phase. Then the entities of each document are merged, in corpus order, into
+ * the entities of all documents before it. Most mentions of a company in a
+ * document are resolved locally, so the global phase only has to compare a
+ * handful of entities per document rather than every mention.
+ */
+@SuppressWarnings("serial")
+public class AliasResolver implements Serializable {
+	public static class ResolvedDocument {
+		public final String name;
+		public final int totalSentences;
+		/**
+		 * Named entities local to this document, in the order they were found.
+		 */
+		public final List<ProperNounProform.NamedEntity> entities;
+		/**
+		 * The named entities mentioned in each sentence. Null for sentences
+		 * without any.
+		 */
+		public final List<Set<ProperNounProform.NamedEntity>> sentenceCoMention;
+		/**
+		 * Nanoseconds spent resolving this document, if statistics are
+		 * enabled, so that they can be reported along with the merge.
+		 */
+		public long resolveNanos;
+
+		private ResolvedDocument(String name, int totalSentences, List<ProperNounProform.NamedEntity> entities, List<Set<ProperNounProform.NamedEntity>> sentenceCoMention) {
+			this.name = name;
+			this.totalSentences = totalSentences;
+			this.entities = entities;
+			this.sentenceCoMention = sentenceCoMention;
+		}
+	}
+
+	private final Map<String, ProperNounProform.NamedEntity> reverseMapping;
+	private final List<ProperNounProform.NamedEntity> aliases;
+	/**
+	 * Rebuilt from {@link #aliases} after deserializing.
+	 */
+	private transient AliasIndex index;
+
+	public AliasResolver() {
+		reverseMapping = new HashMap<String, ProperNounProform.NamedEntity>();
+		aliases = new ArrayList<ProperNounProform.NamedEntity>();
+		index = new AliasIndex();
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		index = new AliasIndex();
+		for (ProperNounProform.NamedEntity ent : aliases)
+			index.add(ent);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <E> List<Set<E>> newArrayOfSets(int length) {
+		return Arrays.asList((Set<E>[]) Array.newInstance(Set.class, length));
+	}
+
+	/**
+	 * Phase one. Only looks at named entities in this document.
+	 *
+	 * @param doc
+	 * @return
+	 */
+	public static ResolvedDocument resolve(NamedEntityParser.Document doc) {
+		Map<String, ProperNounProform.NamedEntity> reverseMapping = new HashMap<String, ProperNounProform.NamedEntity>();
+		List<ProperNounProform.NamedEntity> docEnts = new ArrayList<ProperNounProform.NamedEntity>();
+		List<Set<ProperNounProform.NamedEntity>> sentenceCoMention = newArrayOfSets(doc.getNumberSentences());
+
+		for (NamedEntityParser.NamedEntityOccurrence occurrence : doc.getEntityNames()) {
+			long start = AliasStatistics.isEnabled() ? System.nanoTime() : 0;
+			Set<ProperNounProform.NamedEntity> forSentence = sentenceCoMention.get(occurrence.sentence);
+			if (forSentence == null) {
+				forSentence = new LinkedHashSet<ProperNounProform.NamedEntity>();
+				sentenceCoMention.set(occurrence.sentence, forSentence);
+			}
+
+			// See if this alias was used verbatim earlier in the document
+			ProperNounProform.NamedEntity unique = reverseMapping.get(occurrence.value.toLowerCase());
+			if (AliasStatistics.isEnabled())
+				AliasStatistics.localLookup(unique != null);
+			if (unique == null) {
+				// Otherwise, compare against all previous keys in the document
+				for (ProperNounProform.NamedEntity prevFound : docEnts) {
+					if (ProperNounProform.addAlias(prevFound, occurrence.value)) {
+						// Previous instance of this entity found!
+						unique = prevFound;
+						break;
+					}
+				}
+				if (unique == null) {
+					// Named entity was not found earlier in the document
+					unique = new ProperNounProform.NamedEntity(occurrence.value);
+					docEnts.add(unique);
+				}
+				reverseMapping.put(occurrence.value.toLowerCase(), unique);
+			}
+
+			// Associate named entity to this sentence
+			forSentence.add(unique);
+			if (AliasStatistics.isEnabled())
+				AliasStatistics.surfaceForm(occurrence.value, System.nanoTime() - start);
+		}
+
+		return new ResolvedDocument(doc.name, doc.getNumberSentences(), docEnts, sentenceCoMention);
+	}
+
+	/**
+	 * Phase two. Folds the local entities of {@code doc} into the entities of
+	 * all documents merged before it. Must be called in corpus order.
+	 *
+	 * A local entity with an alias that an earlier entity already used is
+	 * always folded into that entity, as the original resolver did for each
+	 * mention, even if neither key is an alias of the other.
+	 *
+	 * @param doc
+	 * @return the named entities mentioned in each sentence, now referring to
+	 * corpus-wide entities
+	 */
+	public List<Set<ProperNounProform.NamedEntity>> merge(ResolvedDocument doc) {
+		Map<ProperNounProform.NamedEntity, ProperNounProform.NamedEntity> toGlobal = new IdentityHashMap<ProperNounProform.NamedEntity, ProperNounProform.NamedEntity>();
+		for (ProperNounProform.NamedEntity local : doc.entities) {
+			long start = AliasStatistics.isEnabled() ? System.nanoTime() : 0;
+			ProperNounProform.NamedEntity unique = null;
+			// See if any of these aliases were used verbatim in the past
+			for (String alias : local.aliases) {
+				ProperNounProform.NamedEntity prevFound = reverseMapping.get(alias.toLowerCase());
+				if (AliasStatistics.isEnabled())
+					AliasStatistics.globalLookup(prevFound != null);
+				if (prevFound != null) {
+					// A verbatim match always wins, even if the keys do not
+					// match each other, so that no alias belongs to two
+					// entities.
+					if (!ProperNounProform.merge(prevFound, local))
+						prevFound.aliases.addAll(local.aliases);
+					index.update(prevFound);
+					unique = prevFound;
+					break;
+				}
+			}
+			if (unique == null)
+				// Otherwise, compare against all previous keys that could
+				// possibly match.
+				unique = index.merge(local);
+			if (unique == null) {
+				// Named entity was not found in any preceding doc
+				unique = local;
+				aliases.add(unique);
+				index.add(unique);
+			}
+
+			for (String alias : local.aliases)
+				if (!reverseMapping.containsKey(alias.toLowerCase()))
+					reverseMapping.put(alias.toLowerCase(), unique);
+			toGlobal.put(local, unique);
+			if (AliasStatistics.isEnabled())
+				AliasStatistics.surfaceForm(local.key, System.nanoTime() - start);
+		}
+
+		List<Set<ProperNounProform.NamedEntity>> sentenceCoMention = new ArrayList<Set<ProperNounProform.NamedEntity>>(doc.sentenceCoMention.size());
+		for (Set<ProperNounProform.NamedEntity> sentence : doc.sentenceCoMention) {
+			if (sentence == null) {
+				sentenceCoMention.add(null);
+				continue;
+			}
+
+			Set<ProperNounProform.NamedEntity> forSentence = new LinkedHashSet<ProperNounProform.NamedEntity>();
+			for (ProperNounProform.NamedEntity local : sentence)
+				forSentence.add(toGlobal.get(local));
+			sentenceCoMention.add(forSentence);
+		}
+		return sentenceCoMention;
+	}
+
+	/**
+	 * Adds a corpus-wide named entity that was resolved in a previous run.
+	 * Must be called in the order the entities were originally found, and
+	 * before any documents are merged.
+	 *
+	 * @param ent
+	 */
+	public void add(ProperNounProform.NamedEntity ent) {
+		aliases.add(ent);
+		index.add(ent);
+		for (String alias : ent.aliases)
+			if (!reverseMapping.containsKey(alias.toLowerCase()))
+				reverseMapping.put(alias.toLowerCase(), ent);
+	}
+
+	/**
+	 * Every corpus-wide named entity, in the order they were found.
+	 *
+	 * @return
+	 */
+	public List<ProperNounProform.NamedEntity> getEntities() {
+		return aliases;
+	}
+}
@@ -0,0 +1,262 @@
+package in.kevinj.analytics.networks;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import com.sun.xml.internal.txw2.output.IndentingXMLStreamWriter;
+
+/**
+ * Counts the work done during alias resolution so that tuning can target the
+ * names that are actually expensive.
+ *
+ * Disabled by default. Every hook checks {@link #isEnabled()} first, so there
+ * is no cost beyond a field read unless the statistics are asked for. Only a
+ * fixed number of surface forms and documents are timed, so memory does not
+ * grow with the corpus even when enabled.
+ */
+public class AliasStatistics {
+	private static final int TOP_N = 50;
+	/**
+	 * Surface forms are timed with the space saving algorithm, so more are
+	 * kept than are written to make the times written more accurate.
+	 */
+	private static final int SURFACE_FORM_COUNTERS = 20 * TOP_N;
+
+	private static volatile boolean enabled;
+
+	private static final AtomicLong addAliasCalls = new AtomicLong();
+	private static final AtomicLong deletionWindows = new AtomicLong();
+	private static final AtomicLong acronymMatches = new AtomicLong();
+	private static final AtomicLong pushes = new AtomicLong();
+	private static final AtomicLong pops = new AtomicLong();
+	private static final AtomicLong localLookups = new AtomicLong();
+	private static final AtomicLong localHits = new AtomicLong();
+	private static final AtomicLong globalLookups = new AtomicLong();
+	private static final AtomicLong globalHits = new AtomicLong();
+	private static final AtomicLong documentCount = new AtomicLong();
+	private static final AtomicLong documentNanos = new AtomicLong();
+
+	private static class Time {
+		private final String key;
+		private long nanos;
+		/**
+		 * The most {@link #nanos} can be above the true time.
+		 */
+		private final long error;
+
+		public Time(String key, long nanos, long error) {
+			this.key = key;
+			this.nanos = nanos;
+			this.error = error;
+		}
+	}
+
+	private static final Comparator<Time> MOST_EXPENSIVE = new Comparator<Time>() {
+		@Override
+		public int compare(Time a, Time b) {
+			if (a.nanos != b.nanos)
+				return a.nanos > b.nanos ? -1 : 1;
+			return a.key.compareTo(b.key);
+		}
+	};
+
+	/**
+	 * Keeps the times of the most expensive keys in a fixed number of
+	 * counters.
+	 */
+	private static class Heaviest {
+		private final int capacity;
+		private final boolean summed;
+		private final Map<String, Time> times = new HashMap<String, Time>();
+		// Cheapest last.
+		private final TreeSet<Time> order = new TreeSet<Time>(MOST_EXPENSIVE);
+
+		/**
+		 * @param capacity
+		 * @param summed whether a key can be timed more than once. If so, the
+		 * space saving algorithm is used: once every counter is taken, a new
+		 * key replaces the cheapest one and takes over its time, so that a
+		 * key that adds up to more than the cheapest time is never lost.
+		 * Otherwise, the times kept are exactly the most expensive ones.
+		 */
+		public Heaviest(int capacity, boolean summed) {
+			this.capacity = capacity;
+			this.summed = summed;
+		}
+
+		private void put(Time time) {
+			times.put(time.key, time);
+			order.add(time);
+		}
+
+		public synchronized void add(String key, long nanos) {
+			Time time = times.get(key);
+			if (time != null) {
+				order.remove(time);
+				time.nanos += nanos;
+				order.add(time);
+			} else if (times.size() < capacity) {
+				put(new Time(key, nanos, 0));
+			} else if (summed || nanos > order.last().nanos) {
+				Time cheapest = order.pollLast();
+				times.remove(cheapest.key);
+				if (summed)
+					put(new Time(key, cheapest.nanos + nanos, cheapest.nanos));
+				else
+					put(new Time(key, nanos, 0));
+			}
+		}
+
+		/**
+		 * @param n
+		 * @return at most {@code n} of the most expensive keys, most expensive
+		 * first
+		 */
+		public synchronized List<Time> top(int n) {
+			List<Time> top = new ArrayList<Time>(Math.min(n, order.size()));
+			for (Time time : order) {
+				if (top.size() == n)
+					break;
+				top.add(new Time(time.key, time.nanos, time.error));
+			}
+			return top;
+		}
+	}
+
+	/**
+	 * Nanoseconds spent resolving each surface form, summed over all of its
+	 * mentions.
+	 */
+	private static final Heaviest surfaceForms = new Heaviest(SURFACE_FORM_COUNTERS, true);
+	/**
+	 * Nanoseconds spent resolving and merging each document.
+	 */
+	private static final Heaviest documents = new Heaviest(TOP_N, false);
+
+	public static void enable() {
+		enabled = true;
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	public static void addAlias() {
+		addAliasCalls.incrementAndGet();
+	}
+
+	public static void deletionWindows(int windows) {
+		deletionWindows.addAndGet(windows);
+	}
+
+	public static void acronymMatch(int pushed, int popped) {
+		acronymMatches.incrementAndGet();
+		pushes.addAndGet(pushed);
+		pops.addAndGet(popped);
+	}
+
+	/**
+	 * A verbatim lookup within a document.
+	 *
+	 * @param hit
+	 */
+	public static void localLookup(boolean hit) {
+		localLookups.incrementAndGet();
+		if (hit)
+			localHits.incrementAndGet();
+	}
+
+	/**
+	 * A verbatim lookup against the entities of preceding documents.
+	 *
+	 * @param hit
+	 */
+	public static void globalLookup(boolean hit) {
+		globalLookups.incrementAndGet();
+		if (hit)
+			globalHits.incrementAndGet();
+	}
+
+	public static void surfaceForm(String name, long nanos) {
+		surfaceForms.add(name, nanos);
+	}
+
+	/**
+	 * Should be called only once for each document.
+	 *
+	 * @param name
+	 * @param nanos
+	 */
+	public static void document(String name, long nanos) {
+		documentCount.incrementAndGet();
+		documentNanos.addAndGet(nanos);
+		documents.add(name, nanos);
+	}
+
+	private static void writeCounter(XMLStreamWriter writer, String name, long value) throws XMLStreamException {
+		writer.writeStartElement("counter");
+		writer.writeAttribute("name", name);
+		writer.writeAttribute("value", Long.toString(value));
+		writer.writeEndElement();
+	}
+
+	private static void writeTimes(XMLStreamWriter writer, String group, String element, List<Time> times) throws XMLStreamException {
+		writer.writeStartElement(group);
+		for (Time time : times) {
+			writer.writeStartElement(element);
+			writer.writeAttribute("nanos", Long.toString(time.nanos));
+			if (time.error != 0)
+				writer.writeAttribute("error", Long.toString(time.error));
+			writer.writeCharacters(time.key);
+			writer.writeEndElement();
+		}
+		writer.writeEndElement();
+	}
+
+	/**
+	 * Writes every counter, and the most expensive documents and surface
+	 * forms in descending order. A surface form that took over the counter
+	 * of another has an error attribute, the most its time may be too high.
+	 *
+	 * @param stream
+	 * @param factory
+	 * @throws XMLStreamException
+	 */
+	public static void save(PrintStream stream, XMLOutputFactory factory) throws XMLStreamException {
+		XMLStreamWriter writer = new IndentingXMLStreamWriter(factory.createXMLStreamWriter(stream));
+		writer.writeStartDocument();
+		writer.writeStartElement("statistics");
+
+		writer.writeStartElement("counters");
+		writeCounter(writer, "addAliasCalls", addAliasCalls.get());
+		writeCounter(writer, "deletionWindows", deletionWindows.get());
+		writeCounter(writer, "acronymMatches", acronymMatches.get());
+		writeCounter(writer, "acronymPushes", pushes.get());
+		writeCounter(writer, "acronymPops", pops.get());
+		writeCounter(writer, "localLookups", localLookups.get());
+		writeCounter(writer, "localHits", localHits.get());
+		writeCounter(writer, "globalLookups", globalLookups.get());
+		writeCounter(writer, "globalHits", globalHits.get());
+		writeCounter(writer, "documents", documentCount.get());
+		writeCounter(writer, "documentNanos", documentNanos.get());
+		writer.writeEndElement();
+
+		writeTimes(writer, "documents", "document", documents.top(TOP_N));
+		writeTimes(writer, "surfaceForms", "surfaceForm", surfaceForms.top(TOP_N));
+
+		writer.writeEndElement();
+		writer.writeEndDocument();
+		writer.close();
+		stream.println();
+	}
+}
@@ -1,19 +1,23 @@
 package in.kevinj.analytics.networks;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.PrintStream;
-import java.lang.reflect.Array;
+import java.io.Serializable;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.InputMismatchException;
 import java.util.Iterator;
@@ -22,9 +26,19 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Queue;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -53,15 +67,33 @@ import com.sun.xml.internal.txw2.output.IndentingXMLStreamWriter;
  * @author Kevin Jin
  */
 public class CoOccurrenceExtractor {
+	/**
+	 * Milliseconds between checkpoints of alias resolution.
+	 */
+	private static final long CHECKPOINT_INTERVAL = 60 * 1000;
+	/**
+	 * Documents counted by a thread at a time in processMutualInformation().
+	 */
+	private static final int FREQUENCY_CHUNK = 256;
+	/**
+	 * Roughly the most heap a pair takes up in a PairCounter.
+	 */
+	private static final int BYTES_PER_PAIR = 64;
+	/**
+	 * Version of the co-mentions file. Files before version 2 leave out
+	 * documents without any interesting sentences.
+	 */
+	private static final int CO_MENTIONS_VERSION = 2;
+
 	private static class CoreferencedEntity extends NamedEntityParser.NamedEntity {
 		private List<String> antecedent;
 
-		private CoreferencedEntity(NamedEntityParser.NamedEntity complement, NamedEntityParser.Document doc, CoreferenceParser.Range range) {
+		private CoreferencedEntity(NamedEntityParser.NamedEntity complement, List<String> antecedent, CoreferenceParser.Range range) {
 			this.type = complement.type;
 			this.sentence = range.sentence;
 			this.startToken = range.startToken;
 			this.endToken = range.endToken;
-			this.antecedent = Collections.unmodifiableList(complement.getTokens(doc));
+			this.antecedent = antecedent;
 		}
 
 		@Override
@@ -71,6 +103,8 @@ public class CoOccurrenceExtractor {
 
 		public static List<CoreferencedEntity> make(CoreferenceParser.Coreference coref, NamedEntityParser.Document doc) {
 			List<CoreferencedEntity> allAntecedentMatches = new ArrayList<CoreferencedEntity>();
+			// The pronouns are the same for every antecedent in the chain.
+			List<CoreferenceParser.Entry> validAliases = null;
 
 			for (CoreferenceParser.Entry realName : coref.antecedents) {
 				CoreferenceParser.Range range = realName.range;
@@ -80,27 +114,269 @@ public class CoOccurrenceExtractor {
 					continue;
 				}
 
-				List<CoreferenceParser.Entry> validAliases = new ArrayList<CoreferenceParser.Entry>();
-				for (CoreferenceParser.Entry alias : coref.pronouns) {
-					CoreferenceParser.Range aliasRange = alias.range;
-					tokens = getTokens(doc, aliasRange.sentence, aliasRange.startToken, aliasRange.endToken);
-					if (tokens == null || !alias.val.equals(NamedEntityParser.join(tokens))) {
-						Logger.getLogger(NamedEntityParser.class.getName()).log(Level.FINE, "Coreference file mismatch " + doc + " " + coref);
-						continue;
+				if (validAliases == null) {
+					validAliases = new ArrayList<CoreferenceParser.Entry>();
+					for (CoreferenceParser.Entry alias : coref.pronouns) {
+						CoreferenceParser.Range aliasRange = alias.range;
+						tokens = getTokens(doc, aliasRange.sentence, aliasRange.startToken, aliasRange.endToken);
+						if (tokens == null || !alias.val.equals(NamedEntityParser.join(tokens))) {
+							Logger.getLogger(NamedEntityParser.class.getName()).log(Level.FINE, "Coreference file mismatch " + doc + " " + coref);
+							continue;
+						}
+
+						validAliases.add(alias);
 					}
+				}
+				if (validAliases.isEmpty())
+					continue;
 
-					validAliases.add(alias);
+				for (NamedEntityParser.NamedEntity ent : doc.getIntersectingEntities(range.sentence, range.startToken, range.endToken)) {
+					List<String> antecedent = Collections.unmodifiableList(ent.getTokens(doc));
+					for (CoreferenceParser.Entry alias : validAliases)
+						allAntecedentMatches.add(new CoreferencedEntity(ent, antecedent, alias.range));
 				}
-				for (NamedEntityParser.NamedEntity ent : doc.entities)
-					if (ent.intersects(doc, range.sentence, range.startToken, range.endToken))
-						for (CoreferenceParser.Entry alias : validAliases)
-							allAntecedentMatches.add(new CoreferencedEntity(ent, doc, alias.range));
 			}
 			return allAntecedentMatches;
 		}
 	}
 
-	private static class Document {
+	/**
+	 * Numbers entities in the order they are first seen by any thread.
+	 */
+	private static class EntityIds {
+		private final ConcurrentMap<ProperNounProform.NamedEntity, Integer> ids = new ConcurrentHashMap<ProperNounProform.NamedEntity, Integer>();
+		/**
+		 * Only safe to read once every thread is done.
+		 */
+		public final List<ProperNounProform.NamedEntity> entities = new ArrayList<ProperNounProform.NamedEntity>();
+
+		public int get(ProperNounProform.NamedEntity entity) {
+			Integer id = ids.get(entity);
+			if (id == null) {
+				synchronized (this) {
+					id = ids.get(entity);
+					if (id == null) {
+						id = Integer.valueOf(entities.size());
+						entities.add(entity);
+						ids.put(entity, id);
+					}
+				}
+			}
+			return id.intValue();
+		}
+	}
+
+	/**
+	 * The entities of one sentence and every pair of them, reused from one
+	 * sentence to the next.
+	 */
+	private static class SentencePairs {
+		public int entities, size;
+		public int[] ids;
+		public long[] pairs;
+
+		private ProperNounProform.NamedEntity[] inSentence;
+
+		public SentencePairs() {
+			ids = new int[16];
+			pairs = new long[16 * 15 / 2];
+			inSentence = new ProperNounProform.NamedEntity[16];
+		}
+
+		public void load(Set<ProperNounProform.NamedEntity> sentence, EntityIds entityIds) {
+			if (inSentence.length < sentence.size()) {
+				inSentence = new ProperNounProform.NamedEntity[sentence.size()];
+				ids = new int[sentence.size()];
+				pairs = new long[sentence.size() * (sentence.size() - 1) / 2];
+			}
+			entities = 0;
+			for (ProperNounProform.NamedEntity entity : sentence) {
+				inSentence[entities] = entity;
+				ids[entities] = entityIds.get(entity);
+				entities++;
+			}
+			// Same pairs, in the same order, as PairwiseIterator.
+			size = 0;
+			for (int i = 0; i < entities; i++) {
+				for (int j = i + 1; j < entities; j++) {
+					int cmp = inSentence[i].compareTo(inSentence[j]);
+					if (cmp > 0)
+						pairs[size++] = PairCounter.pack(ids[j], ids[i]);
+					else if (cmp < 0)
+						pairs[size++] = PairCounter.pack(ids[i], ids[j]);
+					else
+						throw new IllegalStateException("Different entities with same key");
+				}
+			}
+		}
+	}
+
+	private static int[] countEntity(int[] entities, int id) {
+		if (entities.length <= id)
+			entities = Arrays.copyOf(entities, Math.max(entities.length * 2, id + 1));
+		entities[id]++;
+		return entities;
+	}
+
+	/**
+	 * The frequencies of entities and pairs of entities in some of the
+	 * documents. Entity IDs are shared by all threads, so frequencies can be
+	 * merged by adding them up.
+	 */
+	private static class Frequencies {
+		public int[] entities;
+		public PairCounter pairs;
+		public int corpusSize;
+
+		/**
+		 * Where pairs are spilled once there are {@link #maxPairs} of them,
+		 * or null to keep them all in memory.
+		 */
+		private final PairRuns runs;
+		private final int maxPairs;
+
+		private final SentencePairs inSentence;
+
+		public Frequencies(PairRuns runs, int maxPairs) {
+			entities = new int[256];
+			pairs = new PairCounter();
+			this.runs = runs;
+			this.maxPairs = maxPairs;
+			inSentence = new SentencePairs();
+		}
+
+		/**
+		 * @param document
+		 * @param docIndex unique to the document
+		 * @param ids
+		 * @throws IOException
+		 */
+		public void count(Document document, int docIndex, EntityIds ids) throws IOException {
+			for (Set<ProperNounProform.NamedEntity> sentence : document.interestingSentences) {
+				inSentence.load(sentence, ids);
+				for (int i = 0; i < inSentence.entities; i++)
+					entities = countEntity(entities, inSentence.ids[i]);
+				corpusSize += sentence.size();
+				for (int i = 0; i < inSentence.size; i++)
+					pairs.add(inSentence.pairs[i], docIndex);
+			}
+
+			// Only between documents, so that no document is in two runs.
+			if (runs != null && pairs.size() >= maxPairs) {
+				runs.spill(pairs);
+				pairs = new PairCounter();
+			}
+		}
+
+		/**
+		 * Spills the rest of the pairs, if pairs are being spilled.
+		 *
+		 * @throws IOException
+		 */
+		public void finish() throws IOException {
+			if (runs != null) {
+				runs.spill(pairs);
+				pairs = new PairCounter();
+			}
+		}
+
+		public void addAll(Frequencies other) {
+			if (entities.length < other.entities.length)
+				entities = Arrays.copyOf(entities, other.entities.length);
+			for (int i = 0; i < other.entities.length; i++)
+				entities[i] += other.entities[i];
+			pairs.addAll(other.pairs);
+			corpusSize += other.corpusSize;
+		}
+	}
+
+	/**
+	 * Scores pairs of entities one at a time, keeping only those that pass a
+	 * filter.
+	 */
+	private static class NetworkBuilder {
+		private final List<ProperNounProform.NamedEntity> entities;
+		private final int[] entFrequencies;
+		private final int corpusSize;
+		private final NetworkFilter filter;
+		/**
+		 * With a limit, only the strongest pairs so far are kept, weakest
+		 * first.
+		 */
+		private final PriorityQueue<EntityPair> strongest;
+		private final SortedSet<EntityPair> sortedPairs;
+
+		public NetworkBuilder(List<ProperNounProform.NamedEntity> entities, int[] entFrequencies, int corpusSize, NetworkFilter filter) {
+			this.entities = entities;
+			this.entFrequencies = entFrequencies;
+			this.corpusSize = corpusSize;
+			this.filter = filter;
+			this.strongest = new PriorityQueue<EntityPair>(Math.max(filter.limit, 1));
+			this.sortedPairs = new TreeSet<EntityPair>();
+		}
+
+		public void add(long pair, int sentences, int documents) {
+			if (!filter.accepts(sentences, documents))
+				return;
+
+			int x = PairCounter.first(pair), y = PairCounter.second(pair);
+			double normalized = relationship(sentences, entFrequencies[x], entFrequencies[y], corpusSize);
+			if (!filter.accepts(normalized))
+				return;
+			if (filter.limit != 0 && strongest.size() == filter.limit && normalized < strongest.peek().relationship)
+				return;
+
+			EntityPair entityPair = new EntityPair(
+				entities.get(x),
+				entities.get(y),
+				normalized,
+				sentences,
+				documents
+			);
+			if (filter.limit == 0) {
+				sortedPairs.add(entityPair);
+			} else if (strongest.size() < filter.limit) {
+				strongest.add(entityPair);
+			} else if (entityPair.compareTo(strongest.peek()) > 0) {
+				strongest.poll();
+				strongest.add(entityPair);
+			}
+		}
+
+		public SortedSet<EntityPair> getNetwork() {
+			sortedPairs.addAll(strongest);
+			strongest.clear();
+			return sortedPairs;
+		}
+
+		/**
+		 * Never decreases as {@code sentences} grows, and never increases as
+		 * either entity's frequency grows.
+		 *
+		 * @param sentences the frequency of the pair
+		 * @param x the frequency of the first entity
+		 * @param y the frequency of the second entity
+		 * @param corpusSize
+		 * @return the normalized pointwise mutual information of the pair
+		 */
+		public static double relationship(int sentences, int x, int y, int corpusSize) {
+			// P(X == pair[0] && Y == pair[1]) == freq(pair[0], pair[1]) / N
+			double probJoint = (double) sentences / corpusSize;
+			// P(X == pair[0]) == freq(pair[0]) / N
+			double probX = (double) x / corpusSize;
+			// P(X == pair[1]) == freq(pair[1]) / N
+			double probY = (double) y / corpusSize;
+			// Pointwise mutual information
+			double pmi = Math.log(probJoint / (probX * probY)) / Math.log(2);
+
+			// "The PMI of perfectly correlated words is higher when the
+			// combination is less frequent." Let's fix that.
+			return pmi / (-Math.log(probJoint) / Math.log(2));
+		}
+	}
+
+	@SuppressWarnings("serial")
+	private static class Document implements Serializable {
 		public final int totalSentences;
 		public final List<Set<ProperNounProform.NamedEntity>> interestingSentences;
 
@@ -115,6 +391,25 @@ public class CoOccurrenceExtractor {
 		}
 	}
 
+	/**
+	 * Everything loadClean() needs to continue after the last source file it
+	 * finished.
+	 */
+	@SuppressWarnings("serial")
+	private static class Checkpoint implements Serializable {
+		public final String lastFile;
+		public final AliasResolver resolver;
+		public final Map<String, Document> documents;
+		public final boolean listsEmpty;
+
+		public Checkpoint(String lastFile, AliasResolver resolver, Map<String, Document> documents, boolean listsEmpty) {
+			this.lastFile = lastFile;
+			this.resolver = resolver;
+			this.documents = documents;
+			this.listsEmpty = listsEmpty;
+		}
+	}
+
 	private static class PairwiseIterator<T extends Comparable<T>> implements Iterator<List<T>> {
 		private final Object[] array;
 		private int i, j;
@@ -252,9 +547,91 @@ public class CoOccurrenceExtractor {
 		}
 	}
 
-	@SuppressWarnings("unchecked")
-	private static <E> List<Set<E>> newArrayOfSets(int length) {
-		return Arrays.asList((Set<E>[]) Array.newInstance(Set.class, length));
+	/**
+	 * Which pairs of entities to keep in the network. Pairs are checked as
+	 * they are scored, so the ones that would be thrown away are never
+	 * materialized.
+	 */
+	public static class NetworkFilter {
+		public static final NetworkFilter ALL = new NetworkFilter(0, 0, Float.NEGATIVE_INFINITY, 0);
+
+		public final int minSentences, minDocuments;
+		/**
+		 * Compared against the relationship rounded to a float, the same as
+		 * the edge weights in a Gephi graph.
+		 */
+		public final float minRelationship;
+		/**
+		 * The most pairs to keep, strongest first, or 0 to keep all of them.
+		 */
+		public final int limit;
+
+		public NetworkFilter(int minSentences, int minDocuments, float minRelationship, int limit) {
+			this.minSentences = minSentences;
+			this.minDocuments = minDocuments;
+			this.minRelationship = minRelationship;
+			this.limit = limit;
+		}
+
+		/**
+		 * Can be checked before the relationship is calculated.
+		 *
+		 * @param sentences
+		 * @param documents
+		 * @return
+		 */
+		public boolean accepts(int sentences, int documents) {
+			return sentences >= minSentences && documents >= minDocuments;
+		}
+
+		public boolean accepts(double relationship) {
+			return (float) relationship >= minRelationship;
+		}
+	}
+
+	/**
+	 * Counts pairs in a fixed amount of memory instead of counting every
+	 * pair exactly. Pairs are estimated in count-min sketches while only the
+	 * most frequent ones are kept as candidates, and only the candidates that
+	 * could make it into the network are counted again exactly. So every
+	 * relationship in the network is exact, but a pair can be missing from
+	 * it.
+	 *
+	 * How far off the network can be is filled in once it is generated.
+	 */
+	public static class Approximation {
+		public final int sketchWidth, sketchDepth, heavyHitters;
+
+		/**
+		 * Sketch estimates are more than {@code epsilon} of the corpus too
+		 * high with a probability of at most {@code delta}.
+		 */
+		public double epsilon, delta;
+		/**
+		 * The pairs that were counted exactly.
+		 */
+		public int candidates;
+		/**
+		 * Every pair in more sentences than this was a candidate.
+		 */
+		public int missedSentences;
+		/**
+		 * The highest relationship a pair that passes the filter but is
+		 * missing from the network can have, or NaN if none can be missing.
+		 */
+		public double missedRelationship;
+
+		/**
+		 * @param sketchWidth counters in each row of the sketches
+		 * @param sketchDepth rows in each sketch
+		 * @param heavyHitters the most candidate pairs to keep
+		 */
+		public Approximation(int sketchWidth, int sketchDepth, int heavyHitters) {
+			this.sketchWidth = sketchWidth;
+			this.sketchDepth = sketchDepth;
+			this.heavyHitters = heavyHitters;
+			this.missedRelationship = Double.NaN;
+		}
 	}
 
 	/**
@@ -271,81 +648,218 @@ public class CoOccurrenceExtractor {
 		return filtered;
 	}
 
-	private static void loadClean(Map<String, Document> documents, Map<String, ProperNounProform.NamedEntity> allEnts) {
-		Map<String, List<CoreferenceParser.Coreference>> corefs = CoreferenceParser.processCoreferences("WSJ/WSJ.pron");
-		Map<String, ProperNounProform.NamedEntity> reverseMapping = new HashMap<String, ProperNounProform.NamedEntity>();
-		List<ProperNounProform.NamedEntity> aliases = new ArrayList<ProperNounProform.NamedEntity>();
-		NamedEntitySanitizer.correctAllProjects("WSJ", "WSJ.clean");
+	/**
+	 * Waits for a phase one task of alias resolution to finish.
+	 *
+	 * @param future
+	 * @return
+	 */
+	private static <T> T await(Future<T> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			if (e.getCause() instanceof Error)
+				throw (Error) e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+	}
 
-		for (String name : new File("WSJ.clean").list()) {
-			if (!name.endsWith(".pron")) {
-				for (NamedEntityParser.Document doc : NamedEntityParser.processNamedEntities("WSJ.clean/" + name)) {
-					List<CoreferenceParser.Coreference> refs = corefs.get(doc.name);
-					if (refs == null)
-						continue;
+	private static void mergeResolved(AliasResolver resolver, Future<AliasResolver.ResolvedDocument> future, Map<String, Document> documents, boolean listsEmpty) {
+		AliasResolver.ResolvedDocument doc = await(future);
+		if (!listsEmpty && interestingSentences(doc.sentenceCoMention).isEmpty()) {
+			// Most likely resolved before, but left out of an older
+			// co-mentions file. Merging it again could change the aliases.
+			documents.put(doc.name, new Document(doc.totalSentences, Collections.<Set<ProperNounProform.NamedEntity>>emptyList()));
+			if (AliasStatistics.isEnabled())
+				AliasStatistics.document(doc.name, doc.resolveNanos);
+			return;
+		}
+		long start = AliasStatistics.isEnabled() ? System.nanoTime() : 0;
+		List<Set<ProperNounProform.NamedEntity>> interesting = interestingSentences(resolver.merge(doc));
+		if (AliasStatistics.isEnabled())
+			AliasStatistics.document(doc.name, doc.resolveNanos + System.nanoTime() - start);
+		// Documents without any interesting sentences are still kept so that
+		// an incremental run knows they were already resolved.
+		documents.put(doc.name, new Document(doc.totalSentences, interesting));
+		System.err.println(doc.name);
+	}
 
-					for (CoreferenceParser.Coreference coref : refs)
-						for (CoreferencedEntity ent : CoreferencedEntity.make(coref, doc))
-							doc.addEntity(ent);
-
-					List<Set<ProperNounProform.NamedEntity>> sentenceCoMention = newArrayOfSets(doc.getNumberSentences());
-//					List<ProperNounProform.NamedEntity> docEnts = new ArrayList<ProperNounProform.NamedEntity>();
-					for (NamedEntityParser.NamedEntityOccurrence occurrence : doc.getEntityNames()) {
-						Set<ProperNounProform.NamedEntity> forSentence = sentenceCoMention.get(occurrence.sentence);
-						if (forSentence == null) {
-							forSentence = new LinkedHashSet<ProperNounProform.NamedEntity>();
-							sentenceCoMention.set(occurrence.sentence, forSentence);
-						}
+	/**
+	 * Parses one source file, and records it in {@code manifest} once it is
+	 * parsed.
+	 *
+	 * @param name
+	 * @param manifest
+	 * @param skipUnchanged if the file did not change since it was recorded,
+	 * none of its documents are returned
+	 * @return null if the file could not be read or parsed
+	 */
+	private static Callable<List<NamedEntityParser.Document>> ingest(final String name, final NamedEntitySanitizer.Manifest manifest, final boolean skipUnchanged) {
+		return new Callable<List<NamedEntityParser.Document>>() {
+			@Override
+			public List<NamedEntityParser.Document> call() {
+				File source = new File("WSJ/" + name);
+				if (skipUnchanged && manifest.isUnchanged(name, source))
+					return Collections.emptyList();
+
+				byte[] raw;
+				try {
+					raw = NamedEntitySanitizer.readFile(source);
+				} catch (IOException e) {
+					Logger.getLogger(CoOccurrenceExtractor.class.getName()).log(Level.WARNING, "Could not load named entities from " + source, e);
+					return null;
+				}
+				if (skipUnchanged && manifest.isUnchanged(name, source, raw))
+					return Collections.emptyList();
 
-						// Find previous instances of this named entity
-						ProperNounProform.NamedEntity unique = null;
-						// See if this alias was used verbatim in the past
-						unique = reverseMapping.get(occurrence.value.toLowerCase());
-						if (unique == null) {
-							// Otherwise, compare against all previous keys.
-							// FIXME: only look at named entities in this
-							// document. Then merge in the end.
-							for (ProperNounProform.NamedEntity prevFound : aliases) {
-								if (ProperNounProform.addAlias(prevFound, occurrence.value)) {
-									// Previous instance of this entity found!
-									unique = prevFound;
-									reverseMapping.put(occurrence.value.toLowerCase(), unique);
-									break;
-								}
-							}
-						}
+				List<NamedEntityParser.Document> docs = NamedEntityParser.processRawNamedEntities(source.getPath(), raw);
+				if (docs != null)
+					manifest.record(name, source, raw);
+				return docs;
+			}
+		};
+	}
 
-						if (unique == null) {
-							// Named entity was not found in any preceding doc
-							unique = new ProperNounProform.NamedEntity(occurrence.value);
-							reverseMapping.put(occurrence.value.toLowerCase(), unique);
-//							docEnts.add(unique);
-							aliases.add(unique);
-						}
+	private static void saveCheckpoint(File checkpoint, Checkpoint state) throws IOException {
+		// Never leave a partially written checkpoint behind.
+		File temp = new File(checkpoint.getPath() + ".tmp");
+		ObjectOutputStream stream = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+		try {
+			stream.writeObject(state);
+		} finally {
+			stream.close();
+		}
+		if (checkpoint.exists() && !checkpoint.delete() || !temp.renameTo(checkpoint))
+			throw new IOException("Could not replace " + checkpoint);
+	}
 
-						// Associate named entity to this sentence
-						forSentence.add(unique);
-					}
+	private static Checkpoint loadCheckpoint(File checkpoint) throws IOException {
+		ObjectInputStream stream = new ObjectInputStream(new BufferedInputStream(new FileInputStream(checkpoint)));
+		try {
+			return (Checkpoint) stream.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Unrecognized format", e);
+		} finally {
+			stream.close();
+		}
+	}
 
-					List<Set<ProperNounProform.NamedEntity>> interesting = interestingSentences(sentenceCoMention);
-					if (!interesting.isEmpty())
-						documents.put(doc.name, new Document(doc.getNumberSentences(), interesting));
-					System.err.println(doc.name);
+	/**
+	 * Source files are fixed in memory and parsed in parallel, and so are
+	 * documents resolved on their own, but documents are always merged in
+	 * corpus order, so the output does not depend on the number of threads.
+	 * Documents already in {@code documents} are skipped before their
+	 * coreferences are looked up, and WSJ.pron is only indexed if any other
+	 * document is found.
+	 *
+	 * Source files are read in sorted order. Every so often, once all
+	 * documents of a source file are merged, the state is saved to
+	 * {@code checkpoint} so that a later run can continue after that file.
+	 *
+	 * Every source file that is parsed, and WSJ.pron, are recorded in
+	 * {@code manifest}. If {@code skipUnchanged}, source files that did not
+	 * change since they were recorded are not parsed at all, as long as
+	 * WSJ.pron did not change either.
+	 * A source file that cannot be read or parsed is logged and skipped
+	 * without being recorded.
+	 *
+	 * @param documents
+	 * @param resolver
+	 * @param threads
+	 * @param checkpoint
+	 * @param lastFile the last source file that was already done, or null
+	 * @param listsEmpty whether {@code documents} includes documents without
+	 * any interesting sentences. If not, a document without any is taken to
+	 * be one of those, and is not merged again.
+	 * @param manifest
+	 * @param skipUnchanged
+	 * @throws IOException
+	 */
+	private static void loadClean(Map<String, Document> documents, AliasResolver resolver, int threads, File checkpoint, String lastFile, boolean listsEmpty, NamedEntitySanitizer.Manifest manifest, boolean skipUnchanged) throws IOException {
+		final CoreferenceParser.Corpus corefs = CoreferenceParser.processCoreferences("WSJ/WSJ.pron", new HashSet<String>(documents.keySet()));
+		File pron = new File("WSJ/WSJ.pron");
+		// Documents that were left out for not having any coreferences may
+		// have some now.
+		boolean pronUnchanged = manifest.isUnchanged(pron.getName(), pron);
+		skipUnchanged = skipUnchanged && pronUnchanged;
+
+		List<String> names = new ArrayList<String>();
+		for (String name : new File("WSJ").list())
+			if (!name.endsWith(".pron") && (lastFile == null || name.compareTo(lastFile) > 0))
+				names.add(name);
+		Collections.sort(names);
+		long lastCheckpoint = System.currentTimeMillis();
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		// Bounds the number of parsed documents held in memory at once.
+		int maxPending = threads * 4;
+		Queue<Future<AliasResolver.ResolvedDocument>> pending = new ArrayDeque<Future<AliasResolver.ResolvedDocument>>();
+		// Source files are read ahead, in order, up to one per thread.
+		Queue<Future<List<NamedEntityParser.Document>>> parsed = new ArrayDeque<Future<List<NamedEntityParser.Document>>>();
+		int nextFile = 0;
+		try {
+			for (String name : names) {
+				while (nextFile < names.size() && parsed.size() < threads)
+					parsed.add(pool.submit(ingest(names.get(nextFile++), manifest, skipUnchanged)));
+
+				List<NamedEntityParser.Document> docs = await(parsed.remove());
+				// Already logged. The file is not recorded in the manifest,
+				// so a later incremental run will try its documents again.
+				if (docs == null)
+					docs = Collections.emptyList();
+				for (final NamedEntityParser.Document doc : docs) {
+					if (documents.containsKey(doc.name) || !corefs.contains(doc.name))
+						continue;
+
+					pending.add(pool.submit(new Callable<AliasResolver.ResolvedDocument>() {
+						@Override
+						public AliasResolver.ResolvedDocument call() {
+							long start = AliasStatistics.isEnabled() ? System.nanoTime() : 0;
+							// Decoded here so that only the coreferences of
+							// documents in flight are held in memory.
+							for (CoreferenceParser.Coreference coref : corefs.get(doc.name))
+								for (CoreferencedEntity ent : CoreferencedEntity.make(coref, doc))
+									doc.addEntity(ent);
+
+							// Resolve mentions within the document only.
+							AliasResolver.ResolvedDocument resolved = AliasResolver.resolve(doc);
+							if (AliasStatistics.isEnabled())
+								resolved.resolveNanos = System.nanoTime() - start;
+							return resolved;
+						}
+					}));
+					// Merge the document's named entities with those of
+					// preceding docs.
+					while (pending.size() > maxPending)
+						mergeResolved(resolver, pending.remove(), documents, listsEmpty);
+				}
+
+				if (System.currentTimeMillis() - lastCheckpoint >= CHECKPOINT_INTERVAL) {
+					while (!pending.isEmpty())
+						mergeResolved(resolver, pending.remove(), documents, listsEmpty);
+					saveCheckpoint(checkpoint, new Checkpoint(name, resolver, documents, listsEmpty));
+					lastCheckpoint = System.currentTimeMillis();
 				}
 			}
+			while (!pending.isEmpty())
+				mergeResolved(resolver, pending.remove(), documents, listsEmpty);
+		} finally {
+			pool.shutdownNow();
 		}
-
-		// This is the only way to preserve insertion order. If we did remove()
-		// and put() whenever the key changed, insertion order into the
-		// LinkedHashMap gets muddled up.
-		for (ProperNounProform.NamedEntity entity : aliases)
-			allEnts.put(entity.key, entity);
+		if (!pronUnchanged)
+			manifest.record(pron.getName(), pron, NamedEntitySanitizer.readFile(pron));
 	}
 
 	private static void saveCoMentions(PrintStream stream, XMLOutputFactory factory, Map<String, Document> documents) throws XMLStreamException {
 		XMLStreamWriter writer = new IndentingXMLStreamWriter(factory.createXMLStreamWriter(stream));
 		writer.writeStartDocument();
 		writer.writeStartElement("corpus");
+		writer.writeAttribute("version", Integer.toString(CO_MENTIONS_VERSION));
 		for (Map.Entry<String, Document> entry : documents.entrySet()) {
 			List<Set<ProperNounProform.NamedEntity>> sentences = entry.getValue().interestingSentences;
 
@@ -378,6 +892,8 @@ public class CoOccurrenceExtractor {
 		for (ProperNounProform.NamedEntity entity : allEnts.values()) {
 			writer.writeStartElement("entity");
 			writer.writeAttribute("key", entity.key);
+			writer.writeAttribute("maxFrontDeletes", Integer.toString(entity.maxFrontDeletes));
+			writer.writeAttribute("maxBackDeletes", Integer.toString(entity.maxBackDeletes));
 
 			for (String alias : entity.aliases) {
 				writer.writeStartElement("alias");
@@ -446,13 +962,26 @@ public class CoOccurrenceExtractor {
 		return new Document(sentences, sentenceCoMention);
 	}
 
-	private static void loadCoMention(InputStream stream, XMLInputFactory factory, Map<String, Document> documents, Map<String, ProperNounProform.NamedEntity> allEnts) throws XMLStreamException {
+	/**
+	 * @param stream
+	 * @param factory
+	 * @param documents
+	 * @param allEnts
+	 * @return whether the file lists documents without any interesting
+	 * sentences
+	 * @throws XMLStreamException
+	 */
+	private static boolean loadCoMention(InputStream stream, XMLInputFactory factory, Map<String, Document> documents, Map<String, ProperNounProform.NamedEntity> allEnts) throws XMLStreamException {
 		XMLStreamReader reader = factory.createXMLStreamReader(stream);
 
 		if (reader.getEventType() != XMLStreamReader.START_DOCUMENT)
 			throw new InputMismatchException("Unrecognized format");
 		if (reader.nextTag() != XMLStreamReader.START_ELEMENT || !reader.getLocalName().equals("corpus"))
 			throw new InputMismatchException("Unrecognized format");
+		String version = reader.getAttributeValue("", "version");
+		// Missing from files written before documents without interesting
+		// sentences were saved.
+		boolean listsEmpty = version != null && Integer.parseInt(version) >= 2;
 
 		@SuppressWarnings("unused")
 		String tag;
@@ -468,11 +997,21 @@ public class CoOccurrenceExtractor {
 		}
 
 		if (reader.next() != XMLStreamReader.END_DOCUMENT)
-			throw new InputMismatchException("Unrecognized format");		
+			throw new InputMismatchException("Unrecognized format");
+		return listsEmpty;
+	}
+
+	private static int parseDeletes(String deletes) {
+		// Missing from files written before deletions were saved.
+		if (deletes == null)
+			return 0;
+		return Integer.parseInt(deletes);
 	}
 
 	private static ProperNounProform.NamedEntity processEntity(XMLStreamReader reader, String key) throws XMLStreamException {
 		ProperNounProform.NamedEntity unique = new ProperNounProform.NamedEntity(key);
+		unique.maxFrontDeletes = parseDeletes(reader.getAttributeValue("", "maxFrontDeletes"));
+		unique.maxBackDeletes = parseDeletes(reader.getAttributeValue("", "maxBackDeletes"));
 
 		String alias = "";
 		String tag;
@@ -553,126 +1092,344 @@ public class CoOccurrenceExtractor {
 		}
 	}
 
-	private static SortedSet<EntityPair> processMutualInformation(Map<String, Document> documents) {
-		Map<ProperNounProform.NamedEntity, Rational> entFrequencies = new LinkedHashMap<ProperNounProform.NamedEntity, Rational>();
-		Map<List<ProperNounProform.NamedEntity>, Rational> pairFrequencies = new LinkedHashMap<List<ProperNounProform.NamedEntity>, Rational>();
-		Map<List<ProperNounProform.NamedEntity>, Rational> pairDocFrequencies = new LinkedHashMap<List<ProperNounProform.NamedEntity>, Rational>();
-		int corpusSize = 0;
+	/**
+	 * @param documents
+	 * @param threads
+	 * @param filter
+	 * @param memoryBudget roughly how many bytes the pair counts may take up
+	 * before they are spilled to disk, or 0 to keep them all in memory
+	 * @return
+	 * @throws IOException
+	 */
+	private static SortedSet<EntityPair> processMutualInformation(Map<String, Document> documents, int threads, NetworkFilter filter, long memoryBudget) throws IOException {
+		final List<Document> corpus = new ArrayList<Document>(documents.values());
+		final EntityIds ids = new EntityIds();
+		final AtomicInteger nextChunk = new AtomicInteger();
+		final PairRuns runs = memoryBudget == 0 ? null : new PairRuns(null);
+		try {
+			// Shared by all threads.
+			final int maxPairs = (int) Math.min(Math.max(memoryBudget / BYTES_PER_PAIR / threads, 1), Integer.MAX_VALUE / 4);
+
+			// Each thread takes chunks of documents until there are none left,
+			// so a thread that gets short documents does not sit idle.
+			ExecutorService pool = Executors.newFixedThreadPool(threads);
+			List<Future<Frequencies>> counted = new ArrayList<Future<Frequencies>>();
+			Frequencies total;
+			try {
+				for (int i = 0; i < threads; i++) {
+					counted.add(pool.submit(new Callable<Frequencies>() {
+						@Override
+						public Frequencies call() throws IOException {
+							Frequencies frequencies = new Frequencies(runs, maxPairs);
+							int start;
+							while ((start = nextChunk.getAndAdd(FREQUENCY_CHUNK)) < corpus.size())
+								for (int docIndex = start; docIndex < Math.min(start + FREQUENCY_CHUNK, corpus.size()); docIndex++)
+									frequencies.count(corpus.get(docIndex), docIndex, ids);
+							frequencies.finish();
+							return frequencies;
+						}
+					}));
+				}
 
-		for (Map.Entry<String, Document> document : documents.entrySet()) {
-			Set<List<ProperNounProform.NamedEntity>> pairsInDoc = new HashSet<List<ProperNounProform.NamedEntity>>();
-			for (Set<ProperNounProform.NamedEntity> sentence : document.getValue().interestingSentences) {
-				for (ProperNounProform.NamedEntity entity : sentence) {
-					Rational c = entFrequencies.get(entity);
-					if (c == null) {
-						c = new Rational(1);
-						entFrequencies.put(entity, c);
-					} else {
-						c.numerator++;
-					}
+				total = await(counted.get(0));
+				for (Future<Frequencies> frequencies : counted.subList(1, counted.size()))
+					total.addAll(await(frequencies));
+			} finally {
+				pool.shutdownNow();
+			}
+
+			NetworkBuilder network = new NetworkBuilder(ids.entities, total.entities, total.corpusSize, filter);
+			if (runs == null) {
+				PairCounter pairFrequencies = total.pairs;
+				for (int i = pairFrequencies.next(0); i != -1; i = pairFrequencies.next(i + 1))
+					network.add(pairFrequencies.getPair(i), pairFrequencies.getSentences(i), pairFrequencies.getDocuments(i));
+			} else {
+				PairRuns.Cursor pairFrequencies = runs.merge();
+				try {
+					while (pairFrequencies.next())
+						network.add(pairFrequencies.pair, pairFrequencies.sentences, pairFrequencies.documents);
+				} finally {
+					pairFrequencies.close();
 				}
+			}
+			return network.getNetwork();
+		} finally {
+			// Runs left over if counting or merging failed.
+			if (runs != null)
+				runs.delete();
+		}
+	}
+
+	/**
+	 * Counts pairs in sketches in one pass, then counts only the candidates
+	 * that could make it into the network again exactly in a second pass.
+	 * Entities are still counted exactly, since they are already numbered.
+	 * Both passes run on the calling thread.
+	 *
+	 * @param documents
+	 * @param filter
+	 * @param approximation filled in with how far off the network can be
+	 * @return
+	 */
+	private static SortedSet<EntityPair> processApproximateMutualInformation(Map<String, Document> documents, NetworkFilter filter, Approximation approximation) {
+		EntityIds ids = new EntityIds();
+		int[] entities = new int[256];
+		int corpusSize = 0;
+		CountMinSketch sentenceSketch = new CountMinSketch(approximation.sketchWidth, approximation.sketchDepth);
+		CountMinSketch documentSketch = new CountMinSketch(approximation.sketchWidth, approximation.sketchDepth);
+		SpaceSaving heavyHitters = new SpaceSaving(approximation.heavyHitters);
+		SentencePairs inSentence = new SentencePairs();
+		long[] inDocument = new long[256];
+		for (Document document : documents.values()) {
+			int n = 0;
+			for (Set<ProperNounProform.NamedEntity> sentence : document.interestingSentences) {
+				inSentence.load(sentence, ids);
+				for (int i = 0; i < inSentence.entities; i++)
+					entities = countEntity(entities, inSentence.ids[i]);
 				corpusSize += sentence.size();
-				for (List<ProperNounProform.NamedEntity> pair : PairwiseIterator.iterable(sentence)) {
-					Rational c = pairFrequencies.get(pair);
-					if (c == null) {
-						c = new Rational(1);
-						pairFrequencies.put(pair, c);
-					} else {
-						c.numerator++;
-					}
-					pairsInDoc.add(pair);
+				if (inDocument.length < n + inSentence.size)
+					inDocument = Arrays.copyOf(inDocument, Math.max(inDocument.length * 2, n + inSentence.size));
+				for (int i = 0; i < inSentence.size; i++) {
+					sentenceSketch.add(inSentence.pairs[i]);
+					heavyHitters.add(inSentence.pairs[i]);
+					inDocument[n++] = inSentence.pairs[i];
 				}
 			}
-			for (List<ProperNounProform.NamedEntity> pair : pairsInDoc) {
-				Rational c = pairDocFrequencies.get(pair);
-				if (c == null) {
-					c = new Rational(1);
-					pairDocFrequencies.put(pair, c);
-				} else {
-					c.numerator++;
-				}
+			// Each pair is counted once for each document that mentions it.
+			Arrays.sort(inDocument, 0, n);
+			for (int i = 0; i < n; i++)
+				if (i == 0 || inDocument[i] != inDocument[i - 1])
+					documentSketch.add(inDocument[i]);
+		}
+
+		// Bound the relationship of each candidate. The counts of a
+		// candidate are never below its true counts, and the sketches never
+		// underestimate, so the bounds always hold.
+		int[] order = new int[heavyHitters.size()];
+		double[] highs = new double[heavyHitters.size()], sureLows = new double[heavyHitters.size()];
+		int kept = 0, sure = 0;
+		for (int i = 0; i < heavyHitters.size(); i++) {
+			long pair = heavyHitters.getKey(i);
+			int sentencesHigh = Math.min(heavyHitters.getCount(i), sentenceSketch.estimate(pair));
+			int sentencesLow = Math.max(heavyHitters.getCount(i) - heavyHitters.getError(i), 1);
+			int documentsHigh = Math.min(documentSketch.estimate(pair), sentencesHigh);
+			if (!filter.accepts(sentencesHigh, documentsHigh))
+				continue;
+
+			int x = entities[PairCounter.first(pair)], y = entities[PairCounter.second(pair)];
+			double high = NetworkBuilder.relationship(sentencesHigh, x, y, corpusSize);
+			if (!filter.accepts(high))
+				continue;
+
+			double low = NetworkBuilder.relationship(sentencesLow, x, y, corpusSize);
+			order[kept] = i;
+			highs[kept] = high;
+			kept++;
+			// A pair is in at least one document.
+			if (filter.accepts(sentencesLow, 1) && filter.accepts(low))
+				sureLows[sure++] = low;
+		}
+
+		// With a limit, a candidate that is sure to be weaker than that many
+		// others that are sure to pass the filter can be left out.
+		double threshold = Double.NEGATIVE_INFINITY;
+		if (filter.limit != 0 && sure >= filter.limit) {
+			Arrays.sort(sureLows, 0, sure);
+			threshold = sureLows[sure - filter.limit];
+		}
+		PairCounter candidates = new PairCounter(kept);
+		for (int i = 0; i < kept; i++)
+			if (highs[i] >= threshold)
+				candidates.add(heavyHitters.getKey(order[i]), 0);
+
+		PairCounter recounted = new PairCounter(candidates.size());
+		int docIndex = 0;
+		for (Document document : documents.values()) {
+			for (Set<ProperNounProform.NamedEntity> sentence : document.interestingSentences) {
+				inSentence.load(sentence, ids);
+				for (int i = 0; i < inSentence.size; i++)
+					if (candidates.indexOf(inSentence.pairs[i]) != -1)
+						recounted.add(inSentence.pairs[i], docIndex);
 			}
+			docIndex++;
 		}
 
-		SortedSet<EntityPair> sortedPairs = new TreeSet<EntityPair>();
-		for (Map.Entry<List<ProperNounProform.NamedEntity>, Rational> pair : pairFrequencies.entrySet()) {
-			// P(X == pair[0] && Y == pair[1]) == freq(pair[0], pair[1]) / N
-			double probJoint = pair.getValue().doubleValue() / corpusSize;
-			// P(X == pair[0]) == freq(pair[0]) / N
-			double probX = entFrequencies.get(pair.getKey().get(0)).doubleValue() / corpusSize;
-			// P(X == pair[1]) == freq(pair[1]) / N
-			double probY = entFrequencies.get(pair.getKey().get(1)).doubleValue() / corpusSize;
-			// Pointwise mutual information
-			double pmi = Math.log(probJoint / (probX * probY)) / Math.log(2);
+		approximation.epsilon = sentenceSketch.getEpsilon();
+		approximation.delta = sentenceSketch.getDelta();
+		approximation.candidates = candidates.size();
+		// Only pairs that were never candidates can be missing, and every
+		// one of them is in at most as many sentences as the least frequent
+		// heavy hitter.
+		approximation.missedSentences = heavyHitters.getMinCount();
+		approximation.missedRelationship = Double.NaN;
+		if (approximation.missedSentences != 0) {
+			// A pair is in no more sentences than either of its entities.
+			// The relationship never decreases with the sentences of the
+			// pair and never increases with the frequency of the more
+			// frequent entity, so for each entity, the strongest a missing
+			// pair with it can be is with the next least frequent entity.
+			int[] frequencies = Arrays.copyOf(entities, ids.entities.size());
+			Arrays.sort(frequencies);
+			for (int i = 0; i + 1 < frequencies.length; i++) {
+				int sentences = Math.min(approximation.missedSentences, frequencies[i]);
+				if (!filter.accepts(sentences, sentences))
+					continue;
 
-			// "The PMI of perfectly correlated words is higher when the
-			// combination is less frequent." Let's fix that.
-			double normalized = pmi / (-Math.log(probJoint) / Math.log(2));
-			sortedPairs.add(new EntityPair(
-				pair.getKey().get(0),
-				pair.getKey().get(1),
-				normalized,
-				pair.getValue().intValue(),
-				pairDocFrequencies.get(pair.getKey()).intValue()
-			));
+				double high = NetworkBuilder.relationship(sentences, frequencies[i], frequencies[i + 1], corpusSize);
+				if (filter.accepts(high) && (Double.isNaN(approximation.missedRelationship) || high > approximation.missedRelationship))
+					approximation.missedRelationship = high;
+			}
 		}
-		return sortedPairs;
-	}
 
-	public static SortedSet<EntityPair> generateNetwork(boolean refresh, File coMentions, File aliases) throws XMLStreamException, IOException {
-		Map<String, ProperNounProform.NamedEntity> allEnts = new LinkedHashMap<String, ProperNounProform.NamedEntity>();
-		Map<String, Document> documents = new LinkedHashMap<String, Document>();
+		NetworkBuilder network = new NetworkBuilder(ids.entities, entities, corpusSize, filter);
+		for (int i = recounted.next(0); i != -1; i = recounted.next(i + 1))
+			network.add(recounted.getPair(i), recounted.getSentences(i), recounted.getDocuments(i));
+		return network.getNetwork();
+	}
 
-		refresh = refresh || !coMentions.exists() || !aliases.exists();
-		if (refresh) {
-			loadClean(documents, allEnts);
-			XMLOutputFactory factory = XMLOutputFactory.newInstance();
+	private static void save(File coMentions, File aliases, Map<String, Document> documents, Map<String, ProperNounProform.NamedEntity> allEnts) throws XMLStreamException, IOException {
+		XMLOutputFactory factory = XMLOutputFactory.newInstance();
 
-			PrintStream stream = System.out;
+		PrintStream stream = System.out;
+		if (coMentions != null)
+			stream = new PrintStream(new FileOutputStream(coMentions));
+		try {
+			saveCoMentions(stream, factory, documents);
+		} finally {
 			if (coMentions != null)
-				stream = new PrintStream(new FileOutputStream(coMentions));
-			try {
-				saveCoMentions(stream, factory, documents);
-			} finally {
-				if (coMentions != null)
-					stream.close();
-			}
-	
-			stream = System.out;
-			if (aliases != null)
-				stream = new PrintStream(new FileOutputStream(aliases));
-			try {
-				saveAliases(stream, factory, allEnts);
-			} finally {
-				if (aliases != null)
-					stream.close();
-			}
-		} else {
-			XMLInputFactory factory = XMLInputFactory.newInstance();
-
-			InputStream stream = new FileInputStream(aliases);
-			try {
-				loadAliases(stream, factory, allEnts);
-			} finally {
 				stream.close();
-			}
+		}
 
-			stream = new FileInputStream(coMentions);
-			try {
-				loadCoMention(stream, factory, documents, allEnts);
-			} finally {
+		stream = System.out;
+		if (aliases != null)
+			stream = new PrintStream(new FileOutputStream(aliases));
+		try {
+			saveAliases(stream, factory, allEnts);
+		} finally {
+			if (aliases != null)
 				stream.close();
+		}
+	}
+
+	/**
+	 * @param coMentions
+	 * @param aliases
+	 * @param documents
+	 * @param allEnts
+	 * @return whether {@code coMentions} lists documents without any
+	 * interesting sentences
+	 * @throws XMLStreamException
+	 * @throws IOException
+	 */
+	private static boolean load(File coMentions, File aliases, Map<String, Document> documents, Map<String, ProperNounProform.NamedEntity> allEnts) throws XMLStreamException, IOException {
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+
+		InputStream stream = new FileInputStream(aliases);
+		try {
+			loadAliases(stream, factory, allEnts);
+		} finally {
+			stream.close();
+		}
+
+		stream = new FileInputStream(coMentions);
+		try {
+			return loadCoMention(stream, factory, documents, allEnts);
+		} finally {
+			stream.close();
+		}
+	}
+
+	/**
+	 * @param refresh resolve the entire corpus from scratch
+	 * @param incremental only resolve documents not already in
+	 * {@code coMentions}, against the named entities in {@code aliases}, and
+	 * add them to both files
+	 * @param resume continue an interrupted refresh from its last checkpoint,
+	 * if there is one
+	 * @param coMentions
+	 * @param aliases
+	 * @param threads at least 1. Only used to resolve aliases when
+	 * {@code approximation} is given.
+	 * @param filter the pairs to keep
+	 * @param memoryBudget roughly how many bytes of pair counts to keep in
+	 * memory before spilling them to disk, or 0 to never spill
+	 * @param approximation how to count pairs approximately, or null to count
+	 * them exactly. Filled in with how far off the network can be.
+	 * @return
+	 * @throws XMLStreamException
+	 * @throws IOException
+	 */
+	public static SortedSet<EntityPair> generateNetwork(boolean refresh, boolean incremental, boolean resume, File coMentions, File aliases, int threads, NetworkFilter filter, long memoryBudget, Approximation approximation) throws XMLStreamException, IOException {
+		if (threads < 1)
+			throw new IllegalArgumentException("--threads must be at least 1");
+
+		Map<String, ProperNounProform.NamedEntity> allEnts = new LinkedHashMap<String, ProperNounProform.NamedEntity>();
+		Map<String, Document> documents = new LinkedHashMap<String, Document>();
+
+		File checkpoint = new File(coMentions.getPath() + ".checkpoint");
+		File manifestFile = new File(coMentions.getPath() + ".manifest");
+		Checkpoint restored = null;
+		if (resume && checkpoint.exists())
+			restored = loadCheckpoint(checkpoint);
+
+		refresh = refresh || !coMentions.exists() || !aliases.exists();
+		if (restored != null || refresh || incremental) {
+			AliasResolver resolver;
+			String lastFile = null;
+			boolean listsEmpty = true;
+			// Only an incremental run can trust the manifest, since it is only
+			// saved along with the co-mentions of every file it lists.
+			boolean skipUnchanged = restored == null && !refresh;
+			NamedEntitySanitizer.Manifest manifest = skipUnchanged ? NamedEntitySanitizer.Manifest.load(manifestFile) : NamedEntitySanitizer.Manifest.empty(manifestFile);
+			if (restored != null) {
+				resolver = restored.resolver;
+				documents.putAll(restored.documents);
+				lastFile = restored.lastFile;
+				listsEmpty = restored.listsEmpty;
+			} else {
+				resolver = new AliasResolver();
+				if (!refresh) {
+					listsEmpty = load(coMentions, aliases, documents, allEnts);
+					for (ProperNounProform.NamedEntity entity : allEnts.values())
+						resolver.add(entity);
+					allEnts.clear();
+				}
 			}
+			loadClean(documents, resolver, threads, checkpoint, lastFile, listsEmpty, manifest, skipUnchanged);
+
+			// This is the only way to preserve insertion order. If we did
+			// remove() and put() whenever the key changed, insertion order into
+			// the LinkedHashMap gets muddled up.
+			for (ProperNounProform.NamedEntity entity : resolver.getEntities())
+				allEnts.put(entity.key, entity);
+			save(coMentions, aliases, documents, allEnts);
+			manifest.save();
+			checkpoint.delete();
+		} else {
+			load(coMentions, aliases, documents, allEnts);
 		}
 
 		processTfdf(documents);
-		return processMutualInformation(documents);
+		if (approximation != null)
+			return processApproximateMutualInformation(documents, filter, approximation);
+		return processMutualInformation(documents, threads, filter, memoryBudget);
 	}
 
-	private static void saveNetwork(PrintStream stream, XMLOutputFactory factory, Set<EntityPair> relationships) throws XMLStreamException {
+	private static void saveNetwork(PrintStream stream, XMLOutputFactory factory, Set<EntityPair> relationships, Approximation approximation) throws XMLStreamException {
 		XMLStreamWriter writer = new IndentingXMLStreamWriter(factory.createXMLStreamWriter(stream));
 		writer.writeStartDocument();
 		writer.writeStartElement("graph");
+		if (approximation != null) {
+			writer.writeAttribute("sketchWidth", Integer.toString(approximation.sketchWidth));
+			writer.writeAttribute("sketchDepth", Integer.toString(approximation.sketchDepth));
+			writer.writeAttribute("heavyHitters", Integer.toString(approximation.heavyHitters));
+			writer.writeAttribute("epsilon", Double.toString(approximation.epsilon));
+			writer.writeAttribute("delta", Double.toString(approximation.delta));
+			writer.writeAttribute("candidates", Integer.toString(approximation.candidates));
+			writer.writeAttribute("missedSentences", Integer.toString(approximation.missedSentences));
+			if (!Double.isNaN(approximation.missedRelationship))
+				writer.writeAttribute("missedWeight", Double.toString(approximation.missedRelationship));
+		}
 		for (EntityPair pair : relationships) {
 			writer.writeStartElement("edge");
 			writer.writeAttribute("weight", Double.toString(pair.relationship));
@@ -696,18 +1453,65 @@ public class CoOccurrenceExtractor {
 	}
 
 	public static void main(String[] args) throws XMLStreamException, IOException {
-		boolean refresh = false;
+		boolean refresh = false, incremental = false, resume = false;
+		int threads = Runtime.getRuntime().availableProcessors();
 		File coMentions = null;
 		File aliases = null;
+		File statistics = null;
+		int minSentences = 0, minDocuments = 0, limit = 0;
+		float minRelationship = Float.NEGATIVE_INFINITY;
+		long memoryBudget = 0;
+		boolean approximate = false;
+		int sketchWidth = 1 << 18, sketchDepth = 4, heavyHitters = 100000;
 		for (int i = 0; i < args.length; i++)
 			if (args[i].equals("--force-refresh"))
 				refresh = true;
+			else if (args[i].equals("--stats"))
+				statistics = new File(args[++i]);
+			else if (args[i].equals("--incremental"))
+				incremental = true;
+			else if (args[i].equals("--resume"))
+				resume = true;
+			else if (args[i].equals("--threads"))
+				threads = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--min-sentences"))
+				minSentences = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--min-documents"))
+				minDocuments = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--min-npmi"))
+				minRelationship = Float.parseFloat(args[++i]);
+			else if (args[i].equals("--top"))
+				limit = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--memory-budget"))
+				memoryBudget = Long.parseLong(args[++i]) * 1024 * 1024;
+			else if (args[i].equals("--approximate"))
+				approximate = true;
+			else if (args[i].equals("--sketch-width"))
+				sketchWidth = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--sketch-depth"))
+				sketchDepth = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--heavy-hitters"))
+				heavyHitters = Integer.parseInt(args[++i]);
 			else if (coMentions == null)
 				coMentions = new File(args[i]);
 			else if (aliases == null)
 				aliases = new File(args[i]);
 
+		if (statistics != null)
+			AliasStatistics.enable();
+
 		XMLOutputFactory factory = XMLOutputFactory.newInstance();
-		saveNetwork(System.out, factory, generateNetwork(refresh, coMentions, aliases));
+		NetworkFilter filter = new NetworkFilter(minSentences, minDocuments, minRelationship, limit);
+		Approximation approximation = approximate ? new Approximation(sketchWidth, sketchDepth, heavyHitters) : null;
+		saveNetwork(System.out, factory, generateNetwork(refresh, incremental, resume, coMentions, aliases, threads, filter, memoryBudget, approximation), approximation);
+
+		if (statistics != null) {
+			PrintStream stream = new PrintStream(new FileOutputStream(statistics));
+			try {
+				AliasStatistics.save(stream, factory);
+			} finally {
+				stream.close();
+			}
+		}
 	}
 }
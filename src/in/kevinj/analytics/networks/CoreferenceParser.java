@@ -1,12 +1,17 @@
 package in.kevinj.analytics.networks;
-import java.io.BufferedReader;
-import java.io.FileReader;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.InputMismatchException;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -82,145 +87,329 @@ public class CoreferenceParser {
 		}
 	}
 
-	private static class Document {
-		public String name;
-		public final List<Coreference> coreferences;
-	
-		public Document() {
-			this.name = "";
-			this.coreferences = new ArrayList<Coreference>();
+	/**
+	 * The bytes of a key, range or value, reused from one entry to the next.
+	 */
+	private static class Field {
+		private byte[] bytes;
+		private int length;
+
+		public Field() {
+			bytes = new byte[64];
 		}
 
-		@Override
-		public String toString() {
-			return "Document[name=" + name + ",coreferences=" + coreferences + ']';
+		public void append(byte b) {
+			if (length == bytes.length)
+				bytes = Arrays.copyOf(bytes, length * 2);
+			bytes[length++] = b;
+		}
+
+		public void clear() {
+			length = 0;
 		}
-	}
 
-	private static void processEntry(Coreference coref, String key, String range, String val) {
-		if (coref == null || coref == Coreference.EMPTY)
-			throw new InputMismatchException("Unrecognized format");
+		public boolean isEmpty() {
+			return length == 0;
+		}
+
+		public boolean endsWith(char c) {
+			return length != 0 && bytes[length - 1] == c;
+		}
+
+		public void removeLast() {
+			length--;
+		}
 
-		if (key.equals("Antecedent")) {
-			coref.antecedents.add(new Entry(range, val));
-		} else if (key.equals("Pronoun")) {
-			coref.pronouns.add(new Entry(range, val));
-		} else {
-			throw new InputMismatchException("Unrecognized format");
+		/**
+		 * Same as {@link String#trim()}.
+		 */
+		public void trim() {
+			int start = 0;
+			while (start < length && (bytes[start] & 0xFF) <= ' ')
+				start++;
+			while (length > start && (bytes[length - 1] & 0xFF) <= ' ')
+				length--;
+			System.arraycopy(bytes, start, bytes, 0, length - start);
+			length -= start;
+		}
+
+		public boolean isBlank() {
+			for (int i = 0; i < length; i++)
+				if ((bytes[i] & 0xFF) > ' ')
+					return false;
+			return true;
+		}
+
+		public String toString(Charset charset) {
+			return new String(bytes, 0, length, charset);
 		}
 	}
 
-	public static Map<String, List<Coreference>> processCoreferences(BufferedReader file) throws IOException {
-		String line;
-		int nest = 0;
-
-		Map<String, List<Coreference>> corpus = new HashMap<String, List<Coreference>>();
-		Document doc = null;
-		Coreference coref = null;
-		String key = null;
-		String range = null;
-		String val = null;
-		while ((line = file.readLine()) != null) {
-			for (int i = 0; i < line.length(); i++) {
-				switch (line.charAt(i)) {
+	/**
+	 * The coreferences of every document in a file. Only the offsets of each
+	 * document are kept in memory, found on first use, and the coreferences of
+	 * a document are decoded each time they are asked for.
+	 */
+	public static class Corpus {
+		private final ByteBuffer file;
+		/**
+		 * Same as FileReader, so that values compare equal to the text.
+		 */
+		private final Charset charset;
+		/**
+		 * Document name to position in {@link #starts} and {@link #ends}.
+		 */
+		private Map<String, Integer> names;
+		private int[] starts, ends;
+		/**
+		 * Documents that are left out of the index.
+		 */
+		private final Set<String> exclude;
+
+		public Corpus(ByteBuffer file, Set<String> exclude) {
+			this.file = file;
+			this.charset = Charset.defaultCharset();
+			this.exclude = exclude;
+		}
+
+		private synchronized Map<String, Integer> getIndex() {
+			if (names == null)
+				index();
+			return names;
+		}
+
+		private void index() {
+			names = new HashMap<String, Integer>();
+			starts = new int[256];
+			ends = new int[256];
+			Field name = new Field();
+			int nest = 0, start = -1;
+			boolean header = false;
+			for (int i = file.position(); i < file.limit(); i++) {
+				byte c = file.get(i);
+				switch (c) {
 					case '(':
 						nest++;
-						if (coref != null) {
+						if (start != -1) {
 							if (nest != 2)
 								throw new InputMismatchException("Unrecognized format");
 
-							key = "";
-							coref = new Coreference();
-							doc.coreferences.add(coref);
+							header = false;
 						} else {
 							if (nest != 1)
 								throw new InputMismatchException("Unrecognized format");
 
-							if (doc != null) corpus.put(doc.name, doc.coreferences);
-							doc = new Document();
-							coref = Coreference.EMPTY;
-							//corpus.add(doc);
+							start = i;
+							header = true;
+							name.clear();
 						}
 						break;
 					case ')':
 						nest--;
 						if (nest == 0) {
-							if ((doc.name = doc.name.trim()).isEmpty())
+							name.trim();
+							if (name.isEmpty())
 								throw new InputMismatchException("Unrecognized format");
 
-							if (doc != null) corpus.put(doc.name, doc.coreferences);
-							doc = null;
-							coref = null;
+							add(name.toString(charset), start, i + 1);
+							start = -1;
 						}
+						break;
+					case '>':
+						// Separators are checked when the entries are decoded.
+						if (nest != 2)
+							throw new InputMismatchException("Unrecognized format");
+						break;
+					case '\r':
+					case '\n':
+						break;
+					default:
+						if (nest == 1 && header)
+							name.append(c);
+						else if (nest != 2 && !Character.isWhitespace((char) (c & 0xFF)))
+							throw new InputMismatchException("Unrecognized format");
+						break;
+				}
+			}
+			if (start != -1)
+				add(name.toString(charset), start, file.limit());
+		}
+
+		private void add(String name, int start, int end) {
+			if (exclude.contains(name))
+				return;
+
+			int i = names.size();
+			if (i == starts.length) {
+				starts = Arrays.copyOf(starts, i * 2);
+				ends = Arrays.copyOf(ends, i * 2);
+			}
+			// Of documents with the same name, the last one is kept.
+			Integer existing = names.get(name);
+			if (existing != null)
+				i = existing.intValue();
+			else
+				names.put(name, Integer.valueOf(i));
+			starts[i] = start;
+			ends[i] = end;
+		}
+
+		public boolean contains(String name) {
+			return getIndex().containsKey(name);
+		}
+
+		public Set<String> getNames() {
+			return Collections.unmodifiableSet(getIndex().keySet());
+		}
+
+		/**
+		 * Safe to call from several threads at once.
+		 *
+		 * @param name
+		 * @return null if the document has no coreferences
+		 */
+		public List<Coreference> get(String name) {
+			int start, end;
+			synchronized (this) {
+				Integer i = getIndex().get(name);
+				if (i == null)
+					return null;
+				start = starts[i.intValue()];
+				end = ends[i.intValue()];
+			}
+			return decode(start, end);
+		}
+
+		private void processEntry(Coreference coref, Field key, Field range, Field val) {
+			processEntry(coref, key.toString(charset), range.toString(charset), val.toString(charset));
+		}
+
+		private static void processEntry(Coreference coref, String key, String range, String val) {
+			if (coref == null || coref == Coreference.EMPTY)
+				throw new InputMismatchException("Unrecognized format");
+
+			if (key.equals("Antecedent")) {
+				coref.antecedents.add(new Entry(range, val));
+			} else if (key.equals("Pronoun")) {
+				coref.pronouns.add(new Entry(range, val));
+			} else {
+				throw new InputMismatchException("Unrecognized format");
+			}
+		}
+
+		/**
+		 * An entry is "key -> range -> value". It ends either at the end of
+		 * the coreference or at the end of a line, unless the line ends
+		 * before its value starts.
+		 *
+		 * @param start
+		 * @param end
+		 * @return
+		 */
+		private List<Coreference> decode(int start, int end) {
+			List<Coreference> coreferences = new ArrayList<Coreference>();
+			Coreference coref = null;
+			Field key = new Field(), range = new Field(), val = new Field();
+			// Which of key, range and val is being read.
+			Field current = null;
+			int nest = 0;
+			// Ends the last line.
+			for (int i = start; i <= end; i++) {
+				byte c = i < end ? file.get(i) : (byte) '\n';
+				switch (c) {
+					case '(':
+						nest++;
+						if (coref != null) {
+							if (nest != 2)
+								throw new InputMismatchException("Unrecognized format");
+
+							key.clear();
+							current = key;
+							coref = new Coreference();
+							coreferences.add(coref);
+						} else {
+							coref = Coreference.EMPTY;
+						}
+						break;
+					case ')':
+						nest--;
 						if (nest == 1) {
-							if (!key.trim().isEmpty()) {
-								if (val == null || (val = val.trim()).isEmpty())
+							if (current != null && !key.isBlank()) {
+								if (current != val)
+									throw new InputMismatchException("Unrecognized format");
+								val.trim();
+								if (val.isEmpty())
 									throw new InputMismatchException("Unrecognized format");
-	
+
 								processEntry(coref, key, range, val);
 							}
 
-							key = null;
-							range = null;
-							val = null;
+							current = null;
 						}
 						break;
 					case '>':
-						if (key == null)
+						if (current == null)
 							throw new InputMismatchException("Unrecognized format");
 
-						if (range == null) {
-							if (key.charAt(key.length() - 1) == '-') {
-								key = key.substring(0, key.length() - 1).trim();
-								range = "";
-							} else {
-								key += line.charAt(i);
-							}
-						} else if (val == null) {
-							if (range.charAt(range.length() - 1) == '-') {
-								range = range.substring(0, range.length() - 1).trim();
-								val = "";
-							} else {
-								range += line.charAt(i);
-							}
+						if (current != val && current.isEmpty())
+							throw new InputMismatchException("Unrecognized format");
+						if (current == key && key.endsWith('-')) {
+							key.removeLast();
+							key.trim();
+							range.clear();
+							current = range;
+						} else if (current == range && range.endsWith('-')) {
+							range.removeLast();
+							range.trim();
+							val.clear();
+							current = val;
 						} else {
-							val += line.charAt(i);
+							current.append(c);
 						}
 						break;
+					case '\r':
 					case '\n':
+						if (current == val) {
+							val.trim();
+							if (!val.isEmpty()) {
+								processEntry(coref, key, range, val);
+
+								key.clear();
+								current = key;
+							}
+						}
 						break;
 					default:
-						if (val != null)
-							val += line.charAt(i);
-						else if (range != null)
-							range += line.charAt(i);
-						else if (key != null)
-							key += line.charAt(i);
-						else if (doc != null && doc.coreferences.isEmpty())
-							doc.name += line.charAt(i);
-						else if (!Character.isWhitespace(line.charAt(i)))
-							throw new InputMismatchException("Unrecognized format");
+						// Otherwise the document name or whitespace, already
+						// checked by the index.
+						if (current != null)
+							current.append(c);
 						break;
 				}
 			}
-			if (val != null && !(val = val.trim()).isEmpty()) {
-				processEntry(coref, key, range, val);
-
-				key = "";
-				range = null;
-				val = null;
-			}
+			return coreferences;
 		}
-		if (doc != null) corpus.put(doc.name, doc.coreferences);
+	}
 
-		return corpus;
+	public static Corpus processCoreferences(String filename) {
+		return processCoreferences(filename, Collections.<String>emptySet());
 	}
 
-	public static Map<String, List<Coreference>> processCoreferences(String filename) {
-		BufferedReader file = null;
+	/**
+	 * The file is only indexed once a document is first looked up, so it is
+	 * never read if no document needs coreferences.
+	 *
+	 * @param filename
+	 * @param exclude documents whose coreferences are not needed
+	 * @return
+	 */
+	public static Corpus processCoreferences(String filename, Set<String> exclude) {
+		FileInputStream file = null;
 		try {
-			file = new BufferedReader(new FileReader(filename));
-			return processCoreferences(file);
+			file = new FileInputStream(filename);
+			FileChannel channel = file.getChannel();
+			// Stays valid after the file is closed.
+			return new Corpus(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), exclude);
 		} catch (IOException e) {
 			Logger.getLogger(CoreferenceParser.class.getName()).log(Level.WARNING, "Could not load coreferences", e);
 			return null;
@@ -236,6 +425,8 @@ public class CoreferenceParser {
 	}
 
 	public static void main(String[] args) throws IOException {
-		System.out.println(processCoreferences("WSJ/WSJ.pron"));
+		Corpus corpus = processCoreferences("WSJ/WSJ.pron");
+		for (String name : corpus.getNames())
+			System.out.println(name + "=" + corpus.get(name));
 	}
 }
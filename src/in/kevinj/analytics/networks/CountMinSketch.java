@@ -0,0 +1,81 @@
+package in.kevinj.analytics.networks;
+
+/**
+ * Estimates how many times each key was added in a fixed amount of memory.
+ *
+ * An estimate is never below the true count. With a width of w and a depth of
+ * d, it is more than e / w of the total count above it with a probability of
+ * at most e^-d. Uses conservative updates, which only raise the counters that
+ * are at the current estimate, so estimates are never further off than with
+ * plain updates.
+ */
+public class CountMinSketch {
+	private final int width, depth;
+	private final int[][] counters;
+	private final long[] seeds;
+	private long total;
+
+	public CountMinSketch(int width, int depth) {
+		if (width < 1 || depth < 1)
+			throw new IllegalArgumentException("Sketch must have at least one counter");
+
+		this.width = width;
+		this.depth = depth;
+		this.counters = new int[depth][width];
+		this.seeds = new long[depth];
+		// Fixed, so that runs are repeatable.
+		long seed = 0x2545F4914F6CDD1DL;
+		for (int i = 0; i < depth; i++) {
+			seed = seed * 6364136223846793005L + 1442695040888963407L;
+			seeds[i] = seed | 1;
+		}
+	}
+
+	private int index(int row, long key) {
+		long h = (key ^ seeds[row]) * 0x9E3779B97F4A7C15L;
+		h ^= h >>> 29;
+		h *= seeds[row];
+		h ^= h >>> 32;
+		return (int) ((h & Long.MAX_VALUE) % width);
+	}
+
+	public void add(long key) {
+		int estimate = estimate(key);
+		for (int i = 0; i < depth; i++) {
+			int index = index(i, key);
+			if (counters[i][index] == estimate)
+				counters[i][index] = estimate + 1;
+		}
+		total++;
+	}
+
+	public int estimate(long key) {
+		int estimate = Integer.MAX_VALUE;
+		for (int i = 0; i < depth; i++)
+			estimate = Math.min(estimate, counters[i][index(i, key)]);
+		return estimate;
+	}
+
+	/**
+	 * @return the sum of all counts
+	 */
+	public long getTotal() {
+		return total;
+	}
+
+	/**
+	 * @return how far above the true count an estimate can be, except with a
+	 * probability of {@link #getDelta()}
+	 */
+	public int getError() {
+		return (int) Math.min(Integer.MAX_VALUE, (long) Math.ceil(getEpsilon() * total));
+	}
+
+	public double getEpsilon() {
+		return Math.E / width;
+	}
+
+	public double getDelta() {
+		return Math.exp(-depth);
+	}
+}
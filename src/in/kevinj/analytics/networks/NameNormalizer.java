@@ -0,0 +1,246 @@
+package in.kevinj.analytics.networks;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Canonical forms of a company name that ProperNounProform compares.
+ *
+ * The same surface forms and entity keys are compared over and over again
+ * during alias resolution, so each name is only normalized once and the forms
+ * are kept in a bounded cache keyed by the raw name.
+ *
+ * The cache is shared by every resolving thread, so looking up a name never
+ * takes a lock. Instead of evicting the least recently used name exactly,
+ * the cache keeps two generations: once the newer one is full, the older one
+ * is dropped, and names still in use move to the newer one as they are
+ * looked up again.
+ */
+public class NameNormalizer {
+	private static final int CACHE_SIZE = 1 << 16;
+
+	private static final Pattern PREFIX = Pattern.compile("^("
+		// Begins with "the"
+		+ "[Tt][Hh][Ee]"
+	+ " )+(.*)$");
+
+	// TODO: get a dictionary similar to
+	// https://en.wikipedia.org/wiki/Types_of_business_entity
+	private static final Pattern SUFFIX = Pattern.compile("^(.*?)("
+		+ " (, )?("
+			// Ends with "and Company", or variations
+			+ "((& ?|and )?[Cc]o(mpany| ?\\.)?)"
+			// Ends with a period e.g. Corp.
+			+ "|[^ ]{1,5}( ?\\.)"
+			// Ends with all caps token between 2 to 4 letters long e.g. PLC
+			+ "|[A-Z]{2,5}" // RLLLP is 5 characters
+//			+ "|'s" // NE tagger mistakenly includes possessive sometimes
+		+ ")"
+	+ ")+$");
+
+	private static final Pattern[] PUNCT = {
+		// Goldman, Sachs & Co. -> Goldman Sachs & Co.
+		Pattern.compile(" ,$"), Pattern.compile("^, "), Pattern.compile("( |),\\1"),
+		// Time-Warner -> Time Warner
+		Pattern.compile(" -$"), Pattern.compile("^- "), Pattern.compile("( |)-\\1"),
+		// Dunkin' -> Dunkin
+		Pattern.compile(" '$"), Pattern.compile("^' "), Pattern.compile("( |)'\\1"),
+		// Guber/Peters -> Guber Peters
+		Pattern.compile(" /$"), Pattern.compile("^/ "), Pattern.compile("( |)/\\1"),
+		// Goldman, Sachs & Co. -> Goldman, Sachs and Co.
+		Pattern.compile(" &$"), Pattern.compile("^& "), Pattern.compile("( |)&\\1")
+	};
+	private static final String[] PUNCT_REPLACEMENT = {
+		"", "", "$1",
+		"", "", "$1",
+		"", "", "$1",
+		"", "", "$1",
+		" and", "and ", " and "
+	};
+	private static final Pattern[] PERIODS = {
+		Pattern.compile(" \\.$"), Pattern.compile("^\\. "), Pattern.compile("( |)\\.\\1")
+	};
+	private static final String[] PERIODS_REPLACEMENT = {
+		"", "", "$1"
+	};
+
+	private static final Pattern IMPORTANT = Pattern.compile("^[A-Z].*");
+
+	/**
+	 * A name after removePunct(), without removing periods, as walked by
+	 * isPortmanteauOrAcronym().
+	 */
+	public static class Variant {
+		public final String name;
+		public final char[] punct;
+		public final char[][] tokens;
+
+		private Variant(String name) {
+			this.name = name;
+			String punct = removePunct(name, false);
+			this.punct = punct.toCharArray();
+			String[] split = punct.split(" ");
+			this.tokens = new char[split.length][];
+			for (int i = 0; i < split.length; i++)
+				this.tokens[i] = split[i].toCharArray();
+		}
+	}
+
+	public static class Form {
+		public final String raw;
+		public final String lowerCase;
+		/**
+		 * After removeSuffix().
+		 */
+		public final String withoutSuffix;
+		/**
+		 * The raw name and the name after removePrefix() and removeSuffix().
+		 * The same object if neither removes anything.
+		 */
+		public final Variant original, stripped;
+		/**
+		 * The stripped name after removePunct(), split into tokens. Null if
+		 * nothing remains.
+		 */
+		public final String[] clean;
+		/**
+		 * {@link #clean} in a case such that two tokens are equalsIgnoreCase()
+		 * exactly when they are equal.
+		 */
+		public final String[] folded;
+		public final boolean[] important;
+
+		private Form(String raw) {
+			this.raw = raw;
+			this.lowerCase = raw.toLowerCase();
+			this.withoutSuffix = removeSuffix(raw);
+			this.original = new Variant(raw);
+			String stripped = removePrefix(withoutSuffix);
+			this.stripped = stripped.equals(raw) ? original : new Variant(stripped);
+
+			String[] clean = removePunct(stripped, true).split(" ");
+			if (isEmpty(clean)) {
+				this.clean = null;
+				this.folded = null;
+				this.important = null;
+			} else {
+				this.clean = clean;
+				this.folded = new String[clean.length];
+				this.important = new boolean[clean.length];
+				for (int i = 0; i < clean.length; i++) {
+					folded[i] = fold(clean[i]);
+					important[i] = isImportantToken(clean[i]);
+				}
+			}
+		}
+	}
+
+	private static class Generation {
+		private final ConcurrentMap<String, Form> forms = new ConcurrentHashMap<String, Form>();
+		// ConcurrentHashMap.size() is too slow to check on every miss.
+		private final AtomicInteger size = new AtomicInteger();
+	}
+
+	private static final Object ROTATE_LOCK = new Object();
+	private static volatile Generation recent = new Generation(), older = new Generation();
+
+	public static Form normalize(String name) {
+		Generation recent = NameNormalizer.recent;
+		Form form = recent.forms.get(name);
+		if (form != null)
+			return form;
+
+		form = older.forms.get(name);
+		if (form == null)
+			form = new Form(name);
+		Form existing = recent.forms.putIfAbsent(name, form);
+		if (existing != null)
+			return existing;
+
+		if (recent.size.incrementAndGet() > CACHE_SIZE / 2) {
+			synchronized (ROTATE_LOCK) {
+				if (NameNormalizer.recent == recent) {
+					// Older first, so that a thread that sees the new
+					// generation also sees this one behind it.
+					older = recent;
+					NameNormalizer.recent = new Generation();
+				}
+			}
+		}
+		return form;
+	}
+
+	public static String removePrefix(String name) {
+		Matcher m = PREFIX.matcher(name);
+		if (m.matches())
+			name = m.group(2);
+		return name;
+	}
+
+	public static String removeSuffix(String name) {
+		Matcher m = SUFFIX.matcher(name);
+		if (m.matches())
+			name = m.group(1);
+		return name;
+	}
+
+	public static String removePunct(String name, boolean periods) {
+		for (int i = 0; i < PUNCT.length; i++)
+			name = PUNCT[i].matcher(name).replaceAll(PUNCT_REPLACEMENT[i]);
+		if (periods)
+			for (int i = 0; i < PERIODS.length; i++)
+				name = PERIODS[i].matcher(name).replaceAll(PERIODS_REPLACEMENT[i]);
+		return name;
+	}
+
+	/**
+	 * Not an article, coordinate conjunction, preposition, or punctuation.
+	 *
+	 * @param token
+	 * @return
+	 */
+	public static boolean isImportantToken(String token) {
+		return IMPORTANT.matcher(token).matches();
+	}
+
+	private static boolean isLineTerminator(char c) {
+		return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+	}
+
+	/**
+	 * Same as isImportantToken(String), without the regular expression.
+	 *
+	 * @param token
+	 * @return
+	 */
+	public static boolean isImportantToken(char[] token) {
+		if (token.length == 0 || token[0] < 'A' || token[0] > 'Z')
+			return false;
+		for (int i = 1; i < token.length; i++)
+			if (isLineTerminator(token[i]))
+				return false;
+		return true;
+	}
+
+	public static boolean isEmpty(String[] array) {
+		return array.length == 0 || array.length == 1 && "".equals(array[0]);
+	}
+
+	/**
+	 * equalsIgnoreCase() considers two characters equal if either their upper
+	 * case or their lower case forms are equal. This maps both characters to
+	 * the same value in either case.
+	 *
+	 * @param token
+	 * @return
+	 */
+	public static String fold(String token) {
+		char[] folded = new char[token.length()];
+		for (int i = 0; i < folded.length; i++)
+			folded[i] = Character.toLowerCase(Character.toUpperCase(token.charAt(i)));
+		return new String(folded);
+	}
+}
@@ -1,13 +1,18 @@
 package in.kevinj.analytics.networks;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.InputMismatchException;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Stack;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -20,22 +25,154 @@ public class NamedEntityParser {
 	private static class Sentence {
 		public String[] tokens;
 
+		/**
+		 * @param tokens must already be unescaped
+		 */
 		public Sentence(String[] tokens) {
 			this.tokens = tokens;
-			for (int i = 0; i < tokens.length; i++) {
-				tokens[i] = tokens[i]
-					.replaceAll("\\\\\\*", "*")
-					.replaceAll("\\\\/", "/")
-					.replaceAll("-LRB-", "(")
-					.replaceAll("-RRB-", ")")
-					.replaceAll("-LSB-", "[")
-					.replaceAll("-RSB-", "]")
-					.replaceAll("-LCB-", "{")
-					.replaceAll("-RCB-", "}")
-					.replaceAll("``|''", "\"")
-					.replaceAll("`|'", "'")
-				;
+		}
+
+		/**
+		 * Penn Treebank escapes that are replaced one after another by
+		 * unescapeSlowly().
+		 */
+		private static final String[] BRACKETS = { "-LRB-", "-RRB-", "-LSB-", "-RSB-", "-LCB-", "-RCB-" };
+		private static final String[] BRACKET_REPLACEMENT = { "(", ")", "[", "]", "{", "}" };
+
+		/**
+		 * Characters that can start an escape. Only an ASCII table because
+		 * every escape is ASCII.
+		 */
+		private static final boolean[] ESCAPE_START = new boolean[128];
+		static {
+			ESCAPE_START['\\'] = true;
+			ESCAPE_START['-'] = true;
+			ESCAPE_START['`'] = true;
+			ESCAPE_START['\''] = true;
+		}
+
+		private static final int CACHE_SIZE = 1 << 12;
+
+		/**
+		 * The same few escaped tokens, e.g. -LRB- or ``, make up most of the
+		 * ones that need to be unescaped.
+		 */
+		@SuppressWarnings("serial")
+		private static final Map<String, String> CACHE = new LinkedHashMap<String, String>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+				return size() > CACHE_SIZE;
+			}
+		};
+
+		private static int bracket(String token, int i) {
+			for (int j = 0; j < BRACKETS.length; j++)
+				if (token.startsWith(BRACKETS[j], i))
+					return j;
+			return -1;
+		}
+
+		/**
+		 * The index of the first escape that changes the token, or -1.
+		 *
+		 * @param token
+		 * @return
+		 */
+		private static int findEscape(String token) {
+			for (int i = 0; i < token.length(); i++) {
+				char c = token.charAt(i);
+				if (c >= ESCAPE_START.length || !ESCAPE_START[c])
+					continue;
+
+				char next = (i + 1 < token.length() ? token.charAt(i + 1) : '\0');
+				switch (c) {
+					case '\\':
+						if (next == '*' || next == '/')
+							return i;
+						break;
+					case '-':
+						if (bracket(token, i) != -1)
+							return i;
+						break;
+					case '`':
+						return i;
+					case '\'':
+						// A lone ' is replaced with itself
+						if (next == '\'')
+							return i;
+						break;
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * Same as unescapeSlowly(), in one pass over the token. Returns the
+		 * token itself when there is nothing to replace.
+		 *
+		 * @param token
+		 * @return
+		 */
+		public static String unescape(String token) {
+			int first = findEscape(token);
+			if (first == -1)
+				return token;
+
+			String unescaped;
+			synchronized (CACHE) {
+				unescaped = CACHE.get(token);
+			}
+			if (unescaped != null)
+				return unescaped;
+
+			StringBuilder sb = new StringBuilder(token.length());
+			sb.append(token, 0, first);
+			for (int i = first; i < token.length(); i++) {
+				char c = token.charAt(i);
+				char next = (i + 1 < token.length() ? token.charAt(i + 1) : '\0');
+				int bracket;
+				if (c == '\\' && (next == '*' || next == '/')) {
+					sb.append(next);
+					i++;
+				} else if (c == '-' && (bracket = bracket(token, i)) != -1) {
+					// Brackets that share a '-' are replaced in a different
+					// order one after another.
+					if (bracket(token, i + 4) != -1)
+						return cache(token, unescapeSlowly(token));
+					sb.append(BRACKET_REPLACEMENT[bracket]);
+					i += 4;
+				} else if (c == '`' && next == '`' || c == '\'' && next == '\'') {
+					sb.append('"');
+					i++;
+				} else if (c == '`') {
+					sb.append('\'');
+				} else {
+					sb.append(c);
+				}
+			}
+			return cache(token, sb.toString());
+		}
+
+		private static String cache(String token, String unescaped) {
+			synchronized (CACHE) {
+				CACHE.put(token, unescaped);
 			}
+			return unescaped;
+		}
+
+		public static String unescapeSlowly(String token) {
+			return token
+				.replaceAll("\\\\\\*", "*")
+				.replaceAll("\\\\/", "/")
+				.replaceAll("-LRB-", "(")
+				.replaceAll("-RRB-", ")")
+				.replaceAll("-LSB-", "[")
+				.replaceAll("-RSB-", "]")
+				.replaceAll("-LCB-", "{")
+				.replaceAll("-RCB-", "}")
+				.replaceAll("``|''", "\"")
+				.replaceAll("`|'", "'")
+			;
 		}
 
 		public boolean isEmpty() {
@@ -62,19 +199,20 @@ public class NamedEntityParser {
 		protected int endToken;
 
 		public void end(Document doc) {
-			endToken = doc.text[doc.text.length - 1].tokens.length;
+			int last = doc.length - 1;
+			endToken = doc.text[last].tokens.length;
 
-			if (doc.text.length - 1 != sentence) {
-				Logger.getLogger(NamedEntityParser.class.getName()).log(Level.FINE, "Named entity spans multiple lines " + doc);
+			if (last != sentence) {
+				if (Logger.getLogger(NamedEntityParser.class.getName()).isLoggable(Level.FINE))
+					Logger.getLogger(NamedEntityParser.class.getName()).log(Level.FINE, "Named entity spans multiple lines " + doc);
 
 				// hacky: make endToken relative to sentence of startToken
-				for (int i = sentence; i < doc.text.length - 1; i++)
-					endToken += doc.text[i].tokens.length;
+				endToken += doc.start(last) - doc.start(sentence);
 			}
 		}
 
 		protected static List<String> getTokens(Document doc, int sentence, int startToken, int endToken) {
-			if (sentence >= doc.text.length)
+			if (sentence >= doc.length)
 				return null;
 
 			if (endToken <= doc.text[sentence].tokens.length)
@@ -82,15 +220,15 @@ public class NamedEntityParser {
 				return Arrays.asList(doc.text[sentence].tokens).subList(startToken, endToken);
 
 			// Entity name might be in the next sentence.
-			while (sentence < doc.text.length && startToken >= doc.text[sentence].tokens.length) {
-				startToken -= doc.text[sentence].tokens.length;
-				endToken -= doc.text[sentence].tokens.length;
-				sentence++;
-			}
+			int start = doc.start(sentence) + startToken;
+			int end = doc.start(sentence) + endToken;
+			sentence = Math.max(sentence, doc.sentenceAt(start));
+			startToken = start - doc.start(sentence);
+			endToken = end - doc.start(sentence);
 
 			// Entity name is split over multiple sentences.
 			List<String> tokens = new ArrayList<String>();
-			while (sentence < doc.text.length && endToken > 0) {
+			while (sentence < doc.length && endToken > 0) {
 				tokens.addAll(Arrays.asList(doc.text[sentence].tokens).subList(startToken, Math.min(endToken, doc.text[sentence].tokens.length)));
 				endToken -= doc.text[sentence].tokens.length;
 				startToken = 0;
@@ -106,42 +244,19 @@ public class NamedEntityParser {
 		public abstract List<String> getTokens(Document doc);
 
 		public boolean intersects(Document doc, int sentence, int theirStartToken, int theirEndToken) {
+			int theirStart = doc.start(sentence) + theirStartToken;
+			int theirEnd = doc.start(sentence) + theirEndToken;
 			// Entity name might be in the next sentence.
-			while (sentence < doc.text.length && theirStartToken >= doc.text[sentence].tokens.length) {
-				theirStartToken -= doc.text[sentence].tokens.length;
-				theirEndToken -= doc.text[sentence].tokens.length;
-				sentence++;
-			}
-			int theirStartSentence = sentence;
-			int theirEndSentence = sentence;
-			while (theirEndSentence < doc.text.length && theirEndToken > doc.text[theirEndSentence].tokens.length) {
-				theirEndToken -= doc.text[theirEndSentence].tokens.length;
-				theirEndSentence++;
-			}
+			int theirStartSentence = Math.max(sentence, doc.sentenceAt(theirStart));
+			int theirEndSentence = Math.max(theirStartSentence, doc.sentenceAt(theirEnd - 1));
 
 			// Normalize.
-			sentence = this.sentence;
-			int ourStartToken = this.startToken;
-			int ourEndToken = this.endToken;
-			int ourStartSentence = sentence;
-			int ourEndSentence = sentence;
-			while (ourStartSentence < theirStartSentence) {
-				ourStartToken -= doc.text[ourStartSentence].tokens.length;
-				ourStartSentence++;
-			}
-			while (ourStartSentence > theirStartSentence) {
-				ourStartSentence--;
-				ourStartToken += doc.text[ourStartSentence].tokens.length;
-			}
-			while (ourEndSentence < theirEndSentence) {
-				ourEndToken -= doc.text[ourEndSentence].tokens.length;
-				ourEndSentence++;
-			}
-			while (ourEndSentence > theirEndSentence) {
-				ourEndSentence--;
-				ourEndToken += doc.text[ourEndSentence].tokens.length;
-			}
-			assert ourStartSentence == theirStartSentence && ourEndSentence == theirEndSentence;
+			int ourStart = doc.start(this.sentence) + this.startToken;
+			int ourEnd = doc.start(this.sentence) + this.endToken;
+			theirStartToken = theirStart - doc.start(theirStartSentence);
+			theirEndToken = theirEnd - doc.start(theirEndSentence);
+			int ourStartToken = ourStart - doc.start(theirStartSentence);
+			int ourEndToken = ourEnd - doc.start(theirEndSentence);
 
 			return (theirStartToken >= ourStartToken && theirStartToken < ourEndToken
 					|| ourStartToken >= theirStartToken && ourStartToken < theirEndToken);
@@ -155,9 +270,13 @@ public class NamedEntityParser {
 
 	private static class ExplicitEntity extends NamedEntity {
 		public ExplicitEntity(String type, Document doc) {
+			this(type, doc.length - 1, doc.text[doc.length - 1].tokens.length - 1);
+		}
+
+		public ExplicitEntity(String type, int sentence, int startToken) {
 			this.type = type;
-			this.sentence = doc.text.length - 1;
-			this.startToken = doc.text[doc.text.length - 1].tokens.length - 1;
+			this.sentence = sentence;
+			this.startToken = startToken;
 		}
 
 		@Override
@@ -181,21 +300,143 @@ public class NamedEntityParser {
 		}
 	}
 
+	/**
+	 * The named entities of a document, sorted by the offset of their first
+	 * token from the start of the document.
+	 */
+	private static class EntityIndex {
+		private int[] starts;
+		/**
+		 * The position of each entity in {@link Document#entities}.
+		 */
+		private int[] positions;
+		private int size;
+		/**
+		 * The most tokens spanned by any entity.
+		 */
+		private int longest;
+
+		public EntityIndex() {
+			starts = new int[16];
+			positions = new int[16];
+			longest = 1;
+		}
+
+		/**
+		 * @param start
+		 * @return the first entity that starts at or after {@code start}
+		 */
+		private int find(int start) {
+			int low = 0, high = size;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (starts[mid] < start)
+					low = mid + 1;
+				else
+					high = mid;
+			}
+			return low;
+		}
+
+		public void add(int start, int end) {
+			if (size == starts.length) {
+				starts = Arrays.copyOf(starts, size * 2);
+				positions = Arrays.copyOf(positions, size * 2);
+			}
+			int i = find(start + 1);
+			System.arraycopy(starts, i, starts, i + 1, size - i);
+			System.arraycopy(positions, i, positions, i + 1, size - i);
+			starts[i] = start;
+			positions[i] = size++;
+			longest = Math.max(longest, end - start);
+		}
+
+		/**
+		 * Every entity that could intersect a span. An entity can only
+		 * intersect the span if it starts inside of it, or if it starts
+		 * before it and is long enough to reach it.
+		 *
+		 * @param start
+		 * @param end
+		 * @return positions in {@link Document#entities}, in order
+		 */
+		public int[] getCandidates(int start, int end) {
+			int from = find(start - longest + 1), to = find(Math.max(start, end - 1) + 1);
+			int[] candidates = Arrays.copyOfRange(positions, from, to);
+			Arrays.sort(candidates);
+			return candidates;
+		}
+	}
+
 	public static class Document {
 		public String name;
+		/**
+		 * Grown like an ArrayList. Only the first {@link #length} are used.
+		 */
 		private Sentence[] text;
+		/**
+		 * The number of tokens in all sentences before each sentence.
+		 */
+		private int[] starts;
+		private int length;
 		public final List<NamedEntity> entities;
+		/**
+		 * Built on first use, and catches up with entities added after that.
+		 */
+		private EntityIndex index;
 
 		public Document() {
+			text = new Sentence[16];
+			starts = new int[16];
 			entities = new ArrayList<NamedEntity>();
 		}
 
+		/**
+		 * The number of tokens in all sentences before a sentence.
+		 *
+		 * @param sentence at most {@link #length}
+		 * @return
+		 */
+		private int start(int sentence) {
+			if (sentence < length)
+				return starts[sentence];
+			if (sentence > length)
+				throw new ArrayIndexOutOfBoundsException(sentence);
+			return length == 0 ? 0 : starts[length - 1] + text[length - 1].tokens.length;
+		}
+
+		/**
+		 * The sentence that contains a token, counting tokens from the start
+		 * of the document.
+		 *
+		 * @param token
+		 * @return -1 if the token is before the first sentence, or
+		 * {@link #length} if it is after the last
+		 */
+		private int sentenceAt(int token) {
+			if (token >= start(length))
+				return length;
+			int i = Arrays.binarySearch(starts, 0, length, token);
+			return i >= 0 ? i : -i - 2;
+		}
+
+		private void addSentence(Sentence sentence) {
+			if (length == text.length) {
+				text = Arrays.copyOf(text, length * 2);
+				starts = Arrays.copyOf(starts, length * 2);
+			}
+			starts[length] = start(length);
+			text[length++] = sentence;
+		}
+
 		private List<Sentence> parse(String[] sentences) {
 			Sentence[] parsed = new Sentence[sentences.length];
 			for (int i = 0; i < sentences.length; i++) {
 				String[] tokens = sentences[i].split(" ", -1);
 				// TODO: is there a pattern with discrepancies in sentence
 				// breaking in WSJ.pron?
+				for (int j = 0; j < tokens.length; j++)
+					tokens[j] = Sentence.unescape(tokens[j]);
 				parsed[i] = new Sentence(tokens);
 			}
 			return Arrays.asList(parsed);
@@ -204,22 +445,17 @@ public class NamedEntityParser {
 		public boolean addText(String[] sentences) {
 			List<Sentence> parsedSentences = parse(sentences);
 
-			if (text == null) {
-				text = new Sentence[parsedSentences.size()];
-				int i = 0;
+			if (length == 0) {
 				for (Sentence sentence : parsedSentences)
-					text[i++] = sentence;
+					addSentence(sentence);
 			} else {
-				text[text.length - 1].append(parsedSentences.get(0));
-				Sentence[] temp = new Sentence[text.length - 1 + parsedSentences.size()];
-				System.arraycopy(text, 0, temp, 0, text.length);
-				int i = text.length;
+				// Only the last sentence can grow, so starts stays valid.
+				text[length - 1].append(parsedSentences.get(0));
 				for (Sentence sentence : parsedSentences.subList(1, parsedSentences.size()))
-					temp[i++] = sentence;
-				text = temp;
+					addSentence(sentence);
 			}
 
-			return (text.length != 0 && text[text.length - 1].isEmpty());
+			return (length != 0 && text[length - 1].isEmpty());
 		}
 
 		public void addEntity(NamedEntity ent) {
@@ -227,22 +463,46 @@ public class NamedEntityParser {
 		}
 
 		public void finalizeText() {
-			assert (text != null && text.length != 0);
+			assert (length != 0);
 
-			if (!text[text.length - 1].isEmpty())
+			if (!text[length - 1].isEmpty())
 				throw new InputMismatchException("Unrecognized format");
 
-			Sentence[] temp = new Sentence[text.length - 1];
-			for (int i = 0; i < temp.length; i++) {
+			text[--length] = null;
+			for (int i = 0; i < length; i++)
 				if (text[i].isEmpty())
 					throw new InputMismatchException("Unrecognized format");
-				temp[i] = text[i];
-			}
-			text = temp;
 		}
 
 		public int getNumberSentences() {
-			return text.length;
+			return length;
+		}
+
+		/**
+		 * Equivalent to calling {@link NamedEntity#intersects} on every
+		 * entity, but only looks at entities near the span.
+		 *
+		 * @param sentence
+		 * @param startToken
+		 * @param endToken
+		 * @return the entities that intersect the span, in the order they
+		 * were added
+		 */
+		public List<NamedEntity> getIntersectingEntities(int sentence, int startToken, int endToken) {
+			if (index == null)
+				index = new EntityIndex();
+			while (index.size < entities.size()) {
+				NamedEntity ent = entities.get(index.size);
+				index.add(start(ent.sentence) + ent.startToken, start(ent.sentence) + ent.endToken);
+			}
+
+			List<NamedEntity> intersecting = new ArrayList<NamedEntity>();
+			for (int position : index.getCandidates(start(sentence) + startToken, start(sentence) + endToken)) {
+				NamedEntity ent = entities.get(position);
+				if (ent.intersects(this, sentence, startToken, endToken))
+					intersecting.add(ent);
+			}
+			return intersecting;
 		}
 
 		public List<NamedEntityOccurrence> getEntityNames() {
@@ -256,7 +516,7 @@ public class NamedEntityParser {
 
 		@Override
 		public String toString() {
-			return "Document[Name=" + name + ",Text=" + Arrays.toString(text) /* + ",Entities=" + entities*/ + ']';
+			return "Document[Name=" + name + ",Text=" + Arrays.toString(Arrays.copyOf(text, length)) /* + ",Entities=" + entities*/ + ']';
 		}
 	}
 
@@ -272,30 +532,30 @@ public class NamedEntityParser {
 	}
 
 	private static String processDocumentName(XMLStreamReader reader) throws XMLStreamException {
-		String name = "";
+		StringBuilder name = new StringBuilder();
 
 		while (reader.next() != XMLStreamReader.END_ELEMENT || !reader.getLocalName().equals("DOCNO")) {
 			if (reader.getEventType() == XMLStreamReader.START_ELEMENT && (reader.getLocalName().equals("ROOT") || reader.getLocalName().equals("DOC") || reader.getLocalName().equals("DOCNO")))
 				throw new InputMismatchException("Unrecognized format");
 
 			if (reader.getEventType() == XMLStreamReader.CHARACTERS)
-				name += reader.getText();
+				name.append(reader.getText());
 			else
 				throw new InputMismatchException("Unrecognized format");
 		}
 
-		return name;
+		return name.toString();
 	}
 
-	private static String trimFront(String value) {
+	private static void trimFront(StringBuilder value) {
 		int j;
 		for (j = 0; (j < value.length()) && (value.charAt(j) <= ' '); j++);
-		return (j > 0) ? value.substring(j) : value;
+		value.delete(0, j);
 	}
 
 	private static Document processDocument(XMLStreamReader reader) throws XMLStreamException {
 		Document doc = new Document();
-		String text = "";
+		StringBuilder text = new StringBuilder();
 		boolean start = true;
 		Stack<NamedEntity> namedEntities = new Stack<NamedEntity>();
 
@@ -312,8 +572,8 @@ public class NamedEntityParser {
 						if (type == null)
 							throw new InputMismatchException("Unrecognized format");
 
-						start = doc.addText(text.split("\r?\n\\s*", -1));
-						text = "";
+						start = doc.addText(text.toString().split("\r?\n\\s*", -1));
+						text.setLength(0);
 						namedEntities.add(new ExplicitEntity(type, doc));
 					} else if (!reader.getLocalName().equals("TIMEX") && !reader.getLocalName().equals("NUMEX")) {
 						throw new InputMismatchException("Unrecognized format");
@@ -324,8 +584,8 @@ public class NamedEntityParser {
 						NamedEntity ent = namedEntities.pop();
 
 						if (ent.type.equals("ORGANIZATION:CORPORATION")) {
-							start = doc.addText(text.split("\r?\n\\s*", -1));
-							text = "";
+							start = doc.addText(text.toString().split("\r?\n\\s*", -1));
+							text.setLength(0);
 							ent.end(doc);
 							doc.addEntity(ent);
 						}
@@ -334,10 +594,10 @@ public class NamedEntityParser {
 					}
 					break;
 				case XMLStreamReader.CHARACTERS:
-					text += reader.getText();
+					text.append(reader.getText());
 					if (start) {
-						text = trimFront(text);
-						start = text.isEmpty();
+						trimFront(text);
+						start = (text.length() == 0);
 					}
 					break;
 				default:
@@ -345,12 +605,384 @@ public class NamedEntityParser {
 			}
 		}
 
-		doc.addText(text.split("\r?\n\\s*", -1));
+		doc.addText(text.toString().split("\r?\n\\s*", -1));
 		doc.finalizeText();
 
 		return doc;
 	}
 
+	/**
+	 * Builds the same documents as processDocument(), in one pass over the
+	 * bytes of a file instead of through a StAX reader.
+	 *
+	 * Rather than splitting the text between named entities into sentences
+	 * and tokens and stitching them back together, sentence and token breaks
+	 * are found as each character is read. Tokens are still unescaped in the
+	 * same pieces that processDocument() would unescape them in.
+	 *
+	 * Only handles well-formed US-ASCII files without comments, processing
+	 * instructions or CDATA. Anything else is left to the StAX reader.
+	 */
+	private static class Scanner {
+		@SuppressWarnings("serial")
+		private static class UnsupportedException extends Exception {
+		}
+
+		private static final UnsupportedException UNSUPPORTED = new UnsupportedException();
+
+		private final ByteBuffer in;
+		private final int limit;
+		private int pos;
+
+		// Of the last start tag.
+		private boolean empty;
+		private String type;
+
+		private Document doc;
+		private final List<String> tokens;
+		/**
+		 * The unescaped pieces of the current token.
+		 */
+		private final StringBuilder token;
+		/**
+		 * The part of the current token after the last named entity boundary,
+		 * not yet unescaped.
+		 */
+		private final StringBuilder piece;
+		/**
+		 * Skipping whitespace at the start of a sentence.
+		 */
+		private boolean start;
+
+		public Scanner(ByteBuffer in) {
+			this.in = in;
+			this.limit = in.limit();
+			this.pos = in.position();
+			this.tokens = new ArrayList<String>();
+			this.token = new StringBuilder();
+			this.piece = new StringBuilder();
+		}
+
+		private int peek(int offset) {
+			return pos + offset < limit ? in.get(pos + offset) & 0xFF : -1;
+		}
+
+		private static boolean isWhitespace(int c) {
+			return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+		}
+
+		/**
+		 * Leaves out ':' so that namespaces never have to be dealt with.
+		 */
+		private static boolean isNameStartChar(int c) {
+			return c >= 'A' && c <= 'Z' || c >= 'a' && c <= 'z' || c == '_';
+		}
+
+		private static boolean isNameChar(int c) {
+			return isNameStartChar(c) || c >= '0' && c <= '9' || c == '-' || c == '.';
+		}
+
+		private void skipWhitespace() {
+			while (isWhitespace(peek(0)))
+				pos++;
+		}
+
+		private void expect(char c) throws UnsupportedException {
+			if (peek(0) != c)
+				throw UNSUPPORTED;
+			pos++;
+		}
+
+		private String name() throws UnsupportedException {
+			if (!isNameStartChar(peek(0)))
+				throw UNSUPPORTED;
+			StringBuilder name = new StringBuilder();
+			do
+				name.append((char) in.get(pos++));
+			while (isNameChar(peek(0)));
+			return name.toString();
+		}
+
+		/**
+		 * A character or entity reference.
+		 *
+		 * @return
+		 * @throws UnsupportedException
+		 */
+		private char reference() throws UnsupportedException {
+			expect('&');
+			if (peek(0) != '#') {
+				String name = name();
+				expect(';');
+				if (name.equals("amp"))
+					return '&';
+				if (name.equals("lt"))
+					return '<';
+				if (name.equals("gt"))
+					return '>';
+				if (name.equals("quot"))
+					return '"';
+				if (name.equals("apos"))
+					return '\'';
+				throw UNSUPPORTED;
+			}
+
+			pos++;
+			int radix = 10;
+			if (peek(0) == 'x') {
+				radix = 16;
+				pos++;
+			}
+			int value = 0, digits = 0;
+			for (; Character.digit(peek(0), radix) != -1; pos++, digits++) {
+				value = value * radix + Character.digit(peek(0), radix);
+				if (value > 0xFFFD)
+					throw UNSUPPORTED;
+			}
+			expect(';');
+			// Unlike a literal CR, a referenced one is not turned into a LF.
+			if (digits == 0 || value < ' ' && value != '\t' && value != '\n' || value >= 0xD800 && value < 0xE000)
+				throw UNSUPPORTED;
+			return (char) value;
+		}
+
+		/**
+		 * A literal character of text, with line breaks normalized.
+		 *
+		 * @return
+		 * @throws UnsupportedException
+		 */
+		private char character() throws UnsupportedException {
+			int c = peek(0);
+			if (c == '&')
+				return reference();
+			if (c == '\r') {
+				pos++;
+				if (peek(0) == '\n')
+					pos++;
+				return '\n';
+			}
+			if (c < ' ' && c != '\t' && c != '\n' || c >= 0x80 || c == ']' && peek(1) == ']' && peek(2) == '>')
+				throw UNSUPPORTED;
+			pos++;
+			return (char) c;
+		}
+
+		/**
+		 * @return the element name
+		 * @throws UnsupportedException
+		 */
+		private String startTag() throws UnsupportedException {
+			expect('<');
+			String name = name();
+			List<String> attributes = new ArrayList<String>();
+			type = null;
+			while (true) {
+				int before = pos;
+				skipWhitespace();
+				if (peek(0) == '>') {
+					pos++;
+					empty = false;
+					return name;
+				}
+				if (peek(0) == '/') {
+					pos++;
+					expect('>');
+					empty = true;
+					return name;
+				}
+				if (pos == before)
+					throw UNSUPPORTED;
+
+				String attribute = name();
+				if (attributes.contains(attribute))
+					throw UNSUPPORTED;
+				attributes.add(attribute);
+				skipWhitespace();
+				expect('=');
+				skipWhitespace();
+				int quote = peek(0);
+				if (quote != '"' && quote != '\'')
+					throw UNSUPPORTED;
+				pos++;
+				StringBuilder value = new StringBuilder();
+				for (int c; (c = peek(0)) != quote; pos++) {
+					// Whitespace in attributes is normalized.
+					if (c < ' ' || c >= 0x80 || c == '<' || c == '&')
+						throw UNSUPPORTED;
+					value.append((char) c);
+				}
+				pos++;
+				if (attribute.equals("TYPE"))
+					type = value.toString();
+			}
+		}
+
+		/**
+		 * @return the element name
+		 * @throws UnsupportedException
+		 */
+		private String endTag() throws UnsupportedException {
+			expect('<');
+			expect('/');
+			String name = name();
+			skipWhitespace();
+			expect('>');
+			return name;
+		}
+
+		private void seal() {
+			token.append(Sentence.unescape(piece.toString()));
+			piece.setLength(0);
+		}
+
+		private void endToken() {
+			seal();
+			tokens.add(token.toString());
+			token.setLength(0);
+		}
+
+		private void endSentence() {
+			doc.addSentence(new Sentence(tokens.toArray(new String[tokens.size()])));
+			tokens.clear();
+		}
+
+		private void text(char c) {
+			if (start) {
+				if (c <= ' ')
+					return;
+				start = false;
+			}
+			if (c == '\n') {
+				endToken();
+				endSentence();
+				start = true;
+			} else if (c == ' ') {
+				endToken();
+			} else {
+				piece.append(c);
+			}
+		}
+
+		private void endEntity(ExplicitEntity ent) {
+			if (!ent.type.equals("ORGANIZATION:CORPORATION"))
+				return;
+
+			seal();
+			ent.endToken = tokens.size() + 1;
+			if (ent.sentence != doc.length)
+				Logger.getLogger(NamedEntityParser.class.getName()).log(Level.FINE, "Named entity spans multiple lines " + doc.name);
+			// make endToken relative to sentence of startToken
+			ent.endToken += doc.start(doc.length) - doc.start(ent.sentence);
+			doc.addEntity(ent);
+		}
+
+		private String documentName() throws UnsupportedException {
+			StringBuilder name = new StringBuilder();
+			while (peek(0) != '<')
+				if (peek(0) == -1)
+					throw UNSUPPORTED;
+				else
+					name.append(character());
+			if (!endTag().equals("DOCNO"))
+				throw UNSUPPORTED;
+			return name.toString().trim();
+		}
+
+		private Document document() throws UnsupportedException {
+			doc = new Document();
+			start = true;
+			List<ExplicitEntity> namedEntities = new ArrayList<ExplicitEntity>();
+			List<String> open = new ArrayList<String>();
+
+			while (!empty) {
+				int c = peek(0);
+				if (c == -1) {
+					throw UNSUPPORTED;
+				} else if (c != '<') {
+					text(character());
+				} else if (peek(1) == '/') {
+					String name = endTag();
+					if (open.isEmpty()) {
+						if (!name.equals("DOC"))
+							throw UNSUPPORTED;
+						break;
+					}
+					if (!name.equals(open.remove(open.size() - 1)))
+						throw UNSUPPORTED;
+					if (name.equals("ENAMEX"))
+						endEntity(namedEntities.remove(namedEntities.size() - 1));
+				} else {
+					String name = startTag();
+					if (name.equals("DOCNO")) {
+						doc.name = empty ? "" : documentName();
+						empty = false;
+					} else if (name.equals("ENAMEX")) {
+						if (type == null)
+							throw UNSUPPORTED;
+						seal();
+						ExplicitEntity ent = new ExplicitEntity(type, doc.length, tokens.size());
+						if (empty) {
+							endEntity(ent);
+						} else {
+							open.add(name);
+							namedEntities.add(ent);
+						}
+						empty = false;
+					} else if (name.equals("TIMEX") || name.equals("NUMEX")) {
+						if (!empty)
+							open.add(name);
+						empty = false;
+					} else {
+						throw UNSUPPORTED;
+					}
+				}
+			}
+			empty = false;
+
+			endToken();
+			endSentence();
+			try {
+				doc.finalizeText();
+			} catch (InputMismatchException e) {
+				throw UNSUPPORTED;
+			}
+			return doc;
+		}
+
+		/**
+		 * @return the documents, or null if the file has to be read with a
+		 * StAX reader
+		 */
+		public List<Document> scan() {
+			try {
+				List<Document> documents = new ArrayList<Document>();
+				skipWhitespace();
+				if (!startTag().equals("ROOT"))
+					throw UNSUPPORTED;
+				if (!empty) {
+					while (true) {
+						skipWhitespace();
+						if (peek(1) == '/') {
+							if (!endTag().equals("ROOT"))
+								throw UNSUPPORTED;
+							break;
+						}
+						if (!startTag().equals("DOC"))
+							throw UNSUPPORTED;
+						documents.add(document());
+					}
+				}
+				skipWhitespace();
+				if (pos != limit)
+					throw UNSUPPORTED;
+				return documents;
+			} catch (UnsupportedException e) {
+				return null;
+			}
+		}
+	}
+
 	public static List<Document> processNamedEntities(InputStream file) throws IOException, XMLStreamException {
 		XMLInputFactory factory = XMLInputFactory.newInstance();
 		XMLStreamReader reader = factory.createXMLStreamReader(file);
@@ -380,10 +1012,21 @@ public class NamedEntityParser {
 		}
 	}
 
+	public static List<Document> processNamedEntities(byte[] file) throws IOException, XMLStreamException {
+		List<Document> documents = new Scanner(ByteBuffer.wrap(file)).scan();
+		if (documents != null)
+			return documents;
+		return processNamedEntities(new ByteArrayInputStream(file));
+	}
+
 	public static List<Document> processNamedEntities(String filename) {
 		FileInputStream file = null;
 		try {
 			file = new FileInputStream(filename);
+			FileChannel channel = file.getChannel();
+			List<Document> documents = new Scanner(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())).scan();
+			if (documents != null)
+				return documents;
 			return processNamedEntities(file);
 		} catch (IOException e) {
 			Logger.getLogger(NamedEntityParser.class.getName()).log(Level.WARNING, "Could not load coreferences", e);
@@ -402,9 +1045,52 @@ public class NamedEntityParser {
 		}
 	}
 
+	/**
+	 * Parses a file straight from the BBN corpus, fixing it in memory instead
+	 * of through a sanitized copy on disk.
+	 *
+	 * @param filename
+	 * @return null if the file could not be read or parsed
+	 */
+	public static List<Document> processRawNamedEntities(String filename) {
+		byte[] raw;
+		try {
+			raw = NamedEntitySanitizer.readFile(new File(filename));
+		} catch (IOException e) {
+			Logger.getLogger(NamedEntityParser.class.getName()).log(Level.WARNING, "Could not load named entities from " + filename, e);
+			return null;
+		}
+		return processRawNamedEntities(filename, raw);
+	}
+
+	/**
+	 * @param filename only used in messages
+	 * @param raw the contents of the file
+	 * @return null if the file could not be parsed
+	 */
+	public static List<Document> processRawNamedEntities(String filename, byte[] raw) {
+		try {
+			byte[] fixed = NamedEntitySanitizer.fixInOnePass(raw);
+			if (fixed != null) {
+				try {
+					return processNamedEntities(fixed);
+				} catch (XMLStreamException e) {
+					Logger.getLogger(NamedEntityParser.class.getName()).log(Level.FINE, "Fixing " + filename + " one problem at a time", e);
+				}
+			}
+			return processNamedEntities(NamedEntitySanitizer.fixOneAtATime(filename, raw));
+		} catch (IOException e) {
+			Logger.getLogger(NamedEntityParser.class.getName()).log(Level.WARNING, "Could not load named entities from " + filename, e);
+			return null;
+		} catch (XMLStreamException e) {
+			Logger.getLogger(NamedEntityParser.class.getName()).log(Level.WARNING, "Could not load named entities from " + filename, e);
+			return null;
+		}
+	}
+
 	public static void main(String[] args) {
 		for (String name : new File("WSJ.clean").list()) {
-			if (!name.endsWith(".pron")) {
+			if (!name.endsWith(".pron") && !name.equals(NamedEntitySanitizer.Manifest.NAME)) {
 				for (Document doc : processNamedEntities("WSJ.clean/" + name)) {
 					System.out.println(doc);
 					//System.out.println(doc.getEntityNames());
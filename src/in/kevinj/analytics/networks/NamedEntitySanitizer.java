@@ -1,25 +1,48 @@
 package in.kevinj.analytics.networks;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
-import java.nio.channels.FileChannel;
+import java.io.PrintStream;
 import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.InputMismatchException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.xml.stream.Location;
 import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+import com.sun.xml.internal.txw2.output.IndentingXMLStreamWriter;
 
 public class NamedEntitySanitizer {
+	/**
+	 * Must be incremented whenever the fixes change what they write, so that
+	 * files fixed by an older version are fixed again.
+	 */
+	private static final int VERSION = 1;
+
 	private enum ProblemType { FRAGMENTS, AND, TAG_MISMATCH, CUT_OFF }
 
 	private static class Problem {
@@ -39,6 +62,192 @@ public class NamedEntitySanitizer {
 		}
 	}
 
+	private static class Fingerprint {
+		public final long size;
+		public final long modified;
+		public final String hash;
+
+		public Fingerprint(long size, long modified, String hash) {
+			this.size = size;
+			this.modified = modified;
+			this.hash = hash;
+		}
+	}
+
+	/**
+	 * Remembers which version of each source file was last read, so that
+	 * files that have not changed are not fixed or parsed again.
+	 */
+	public static class Manifest {
+		public static final String NAME = "manifest.xml";
+
+		private final File file;
+		private final Map<String, Fingerprint> fingerprints;
+
+		private Manifest(File file, Map<String, Fingerprint> fingerprints) {
+			this.file = file;
+			this.fingerprints = fingerprints;
+		}
+
+		private synchronized Fingerprint get(String name) {
+			return fingerprints.get(name);
+		}
+
+		private synchronized void put(String name, Fingerprint fingerprint) {
+			fingerprints.put(name, fingerprint);
+		}
+
+		/**
+		 * Does not read the file.
+		 *
+		 * @param name
+		 * @param source
+		 * @return true if {@code source} has the same size and modification
+		 * time as when it was recorded
+		 */
+		public boolean isUnchanged(String name, File source) {
+			Fingerprint previous = get(name);
+			return previous != null && previous.size == source.length() && previous.modified == source.lastModified();
+		}
+
+		/**
+		 * If only the modification time of {@code source} changed, the record
+		 * is refreshed.
+		 *
+		 * @param name
+		 * @param source
+		 * @param contents the contents of {@code source}
+		 * @return true if the contents are the same as when it was recorded
+		 */
+		public boolean isUnchanged(String name, File source, byte[] contents) {
+			Fingerprint previous = get(name);
+			if (previous == null)
+				return false;
+			Fingerprint current = new Fingerprint(source.length(), source.lastModified(), hash(contents));
+			if (!previous.hash.equals(current.hash))
+				return false;
+			put(name, current);
+			return true;
+		}
+
+		/**
+		 * Should only be called once whatever was made from {@code source}
+		 * is done.
+		 *
+		 * @param name
+		 * @param source
+		 * @param contents the contents of {@code source}
+		 */
+		public void record(String name, File source, byte[] contents) {
+			put(name, new Fingerprint(source.length(), source.lastModified(), hash(contents)));
+		}
+
+		/**
+		 * @param file where the manifest will be saved
+		 * @return a manifest that has no files yet
+		 */
+		public static Manifest empty(File file) {
+			return new Manifest(file, new HashMap<String, Fingerprint>());
+		}
+
+		/**
+		 * Loads the manifest of a directory of fixed files. Empty if there is
+		 * none yet or if it was made by another version of the fixes.
+		 *
+		 * @param destination
+		 * @return
+		 * @throws IOException
+		 */
+		public static Manifest load(String destination) throws IOException {
+			return load(new File(destination + '/' + NAME));
+		}
+
+		/**
+		 * Empty if there is no manifest yet or if it was made by another
+		 * version of the fixes.
+		 *
+		 * @param file
+		 * @return
+		 * @throws IOException
+		 */
+		public static Manifest load(File file) throws IOException {
+			Map<String, Fingerprint> fingerprints = new HashMap<String, Fingerprint>();
+			if (!file.exists())
+				return new Manifest(file, fingerprints);
+
+			InputStream stream = new FileInputStream(file);
+			try {
+				XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(stream);
+				if (reader.getEventType() != XMLStreamReader.START_DOCUMENT)
+					throw new InputMismatchException("Unrecognized format");
+				if (reader.nextTag() != XMLStreamReader.START_ELEMENT || !reader.getLocalName().equals("manifest"))
+					throw new InputMismatchException("Unrecognized format");
+				if (!Integer.toString(VERSION).equals(reader.getAttributeValue("", "version")))
+					return new Manifest(file, fingerprints);
+
+				while (reader.nextTag() != XMLStreamReader.END_ELEMENT || !reader.getLocalName().equals("manifest")) {
+					if (reader.getEventType() != XMLStreamReader.START_ELEMENT || !reader.getLocalName().equals("file"))
+						throw new InputMismatchException("Unrecognized format");
+
+					fingerprints.put(reader.getAttributeValue("", "name"), new Fingerprint(
+						Long.parseLong(reader.getAttributeValue("", "size")),
+						Long.parseLong(reader.getAttributeValue("", "modified")),
+						reader.getAttributeValue("", "hash")
+					));
+					if (reader.nextTag() != XMLStreamReader.END_ELEMENT)
+						throw new InputMismatchException("Unrecognized format");
+				}
+				reader.close();
+				return new Manifest(file, fingerprints);
+			} catch (XMLStreamException e) {
+				throw new IOException("Unrecognized format", e);
+			} finally {
+				stream.close();
+			}
+		}
+
+		public synchronized void save() throws IOException {
+			// Never leave a partially written manifest behind.
+			File temp = new File(file.getPath() + ".tmp");
+			PrintStream stream = new PrintStream(temp, "UTF-8");
+			try {
+				XMLStreamWriter writer = new IndentingXMLStreamWriter(XMLOutputFactory.newInstance().createXMLStreamWriter(stream));
+				writer.writeStartDocument();
+				writer.writeStartElement("manifest");
+				writer.writeAttribute("version", Integer.toString(VERSION));
+				for (Map.Entry<String, Fingerprint> entry : new TreeMap<String, Fingerprint>(fingerprints).entrySet()) {
+					writer.writeEmptyElement("file");
+					writer.writeAttribute("name", entry.getKey());
+					writer.writeAttribute("size", Long.toString(entry.getValue().size));
+					writer.writeAttribute("modified", Long.toString(entry.getValue().modified));
+					writer.writeAttribute("hash", entry.getValue().hash);
+				}
+				writer.writeEndElement();
+				writer.writeEndDocument();
+				writer.close();
+				stream.println();
+			} catch (XMLStreamException e) {
+				throw new IOException("Could not write " + temp, e);
+			} finally {
+				stream.close();
+			}
+			if (file.exists() && !file.delete() || !temp.renameTo(file))
+				throw new IOException("Could not replace " + file);
+		}
+	}
+
+	private static String hash(byte[] file) {
+		try {
+			StringBuilder hex = new StringBuilder();
+			for (byte b : MessageDigest.getInstance("SHA-1").digest(file))
+				hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform is required to support SHA-1
+			throw new RuntimeException(e);
+		}
+	}
+
 	public static Problem findProblems(InputStreamReader file) throws IOException {
 		XMLInputFactory factory = XMLInputFactory.newInstance();
 		XMLStreamReader reader = null;
@@ -86,6 +295,10 @@ public class NamedEntitySanitizer {
 		}
 	}
 
+	public static Problem findProblems(byte[] file) throws IOException {
+		return findProblems(new InputStreamReader(new ByteArrayInputStream(file), "US-ASCII"));
+	}
+
 	public static Problem findProblems(File file) {
 		FileInputStream stream = null;
 		InputStreamReader reader = null;
@@ -106,75 +319,72 @@ public class NamedEntitySanitizer {
 		}
 	}
 
-	private static FileChannel[] initChannels(File sourceFile, File destFile) throws IOException {
-		if (!destFile.exists())
-			destFile.createNewFile();
-
-		FileInputStream input = null;
-		FileOutputStream output = null;
-		FileChannel source = null;
-		FileChannel destination = null;
-
-		try {
-			source = (input = new FileInputStream(sourceFile)).getChannel();
-			destination = (output = new FileOutputStream(destFile)).getChannel();
-
-			return new FileChannel[] { source, destination };
-		} finally {
-			if (source == null && input != null)
-				input.close();
-			if (destination == null && output != null)
-				output.close();
+	/**
+	 * Replaces {@code delete} bytes at {@code offset} with {@code insert}.
+	 */
+	private static class Edit {
+		public final int offset;
+		public final int delete;
+		public final String insert;
+
+		public Edit(int offset, int delete, String insert) {
+			this.offset = offset;
+			this.delete = delete;
+			this.insert = insert;
 		}
 	}
 
-	private static void copyFile(FileChannel source, FileChannel destination, long length) throws IOException {
-		if (length < 0)
-			length = source.size();
-
-		for (long remaining = length - source.position(); remaining > 0;)
-			remaining -= destination.transferFrom(source, destination.position(), remaining);
-		assert length == source.position();
-
-		destination.position(destination.size());
-	}
-
-	private static void copyFile(File sourceFile, File destFile) throws IOException {
-		FileChannel[] files = null;
-
-		try {
-			files = initChannels(sourceFile, destFile);
-			copyFile(files[0], files[1], -1);
-		} finally {
-			if (files != null) {
-				if (files[0] != null)
-					files[0].close();
-				if (files[1] != null)
-					files[1].close();
-			}
+	/**
+	 * Applies the edits, which must be in order and not overlap.
+	 *
+	 * @param file
+	 * @param edits
+	 * @return
+	 */
+	private static byte[] applyEdits(byte[] file, List<Edit> edits) {
+		int length = file.length;
+		for (Edit edit : edits)
+			length += edit.insert.length() - edit.delete;
+
+		byte[] edited = new byte[length];
+		int from = 0, to = 0;
+		for (Edit edit : edits) {
+			System.arraycopy(file, from, edited, to, edit.offset - from);
+			to += edit.offset - from;
+			byte[] insert = edit.insert.getBytes(Charset.forName("US-ASCII"));
+			System.arraycopy(insert, 0, edited, to, insert.length);
+			to += insert.length;
+			from = edit.offset + edit.delete;
 		}
+		System.arraycopy(file, from, edited, to, file.length - from);
+		return edited;
 	}
 
-	private static int getByteOffset(File file, Location loc) throws IOException {
-		long remaining = file.length();
-		byte[] buffer = new byte[4096];
-		int line = 1;
-		int offset = loc.getColumnNumber() - 1;
+	/**
+	 * The offset of the first byte of each line.
+	 *
+	 * @param file
+	 * @return
+	 */
+	private static int[] getLineStarts(byte[] file) {
+		int lines = 1;
+		for (byte b : file)
+			if (b == '\n')
+				lines++;
+
+		int[] lineStarts = new int[lines];
+		for (int i = 0, line = 1; i < file.length; i++)
+			if (file[i] == '\n')
+				lineStarts[line++] = i + 1;
+		return lineStarts;
+	}
 
-		InputStream stream = new FileInputStream(file);
-		try {
-			while (remaining > 0 && line < loc.getLineNumber()) {
-				int read = stream.read(buffer);
-				for (int i = 0; i < read && line < loc.getLineNumber(); i++) {
-					if (buffer[i] == '\n')
-						line++;
-					offset++;
-				}
-				remaining -= read;
-			}
-		} finally {
-			stream.close();
-		}
+	private static int getByteOffset(byte[] file, int[] lineStarts, Location loc) {
+		int offset;
+		if (loc.getLineNumber() <= lineStarts.length)
+			offset = lineStarts[loc.getLineNumber() - 1] + loc.getColumnNumber() - 1;
+		else
+			offset = file.length + loc.getColumnNumber() - 1;
 
 		// getCharacterOffset() behaves differently with multi-byte encodings
 		// for the Reader and Stream source overloads of createXMLStreamReader()
@@ -183,211 +393,452 @@ public class NamedEntitySanitizer {
 		// of this headache so that we can simply use getCharacterOffset() as a
 		// byte offset when seeking in the file.
 		if (offset != loc.getCharacterOffset())
-			Logger.getLogger(NamedEntitySanitizer.class.getName()).log(Level.FINE, "Wrong character offset in " + file);
+			Logger.getLogger(NamedEntitySanitizer.class.getName()).log(Level.FINE, "Wrong character offset");
 
 		return offset;
 	}
 
-	private static String getTrailingWhitespace(FileChannel file, long index) throws IOException {
-		String whitespace = "";
-		if (index <= 0)
-			return whitespace;
-
-		long origPos = file.position();
-
-		char charRead = ' ';
-		ByteBuffer readBuf = ByteBuffer.allocate(1);
-		for (long nextPos = index - 1; Character.isWhitespace(charRead); nextPos--) {
-			file.position(nextPos);
+	private static String getTrailingWhitespace(byte[] file, int index) {
+		int start = index;
+		// Decoding any byte outside of US-ASCII gives U+FFFD
+		while (start > 0 && file[start - 1] >= 0 && Character.isWhitespace((char) file[start - 1]))
+			start--;
+		return new String(file, start, index - start, Charset.forName("US-ASCII"));
+	}
 
-			do
-				file.read(readBuf);
-			while (readBuf.hasRemaining());
-			readBuf.flip();
-			charRead = Charset.forName("US-ASCII").decode(readBuf).charAt(0);
-			readBuf.clear();
+	private static List<Edit> fixFragments(byte[] file, Problem p) {
+		return Arrays.asList(
+			new Edit(0, 0, "<ROOT>"),
+			new Edit(file.length, 0, "</ROOT>" + getTrailingWhitespace(file, file.length))
+		);
+	}
 
-			if (Character.isWhitespace(charRead))
-				whitespace = charRead + whitespace;
-		}
+	private static List<Edit> fixAnd(byte[] file, int[] lineStarts, Problem p) {
+		return Collections.singletonList(new Edit(getByteOffset(file, lineStarts, p.loc) - p.attachment.length(), 0, "amp;"));
+	}
 
-		file.position(origPos);
-		return whitespace;
+	private static List<Edit> fixTagMismatch(byte[] file, int[] lineStarts, Problem p) {
+		int offset = getByteOffset(file, lineStarts, p.loc);
+		int close = offset;
+		while (close < file.length && file[close] != '>')
+			close++;
+		if (close >= file.length)
+			return null;
+		return Collections.singletonList(new Edit(offset, close + 1 - offset, p.attachment.substring(2)));
 	}
 
-	private static boolean fixFragments(File overwrite, Problem p) throws IOException {
-		File temp = File.createTempFile("WSJ.clean", ".temp");
+	private static List<Edit> fixCutOff(byte[] file, int[] lineStarts, Problem p) {
+		int pos = getByteOffset(file, lineStarts, p.loc);
+		return Collections.singletonList(new Edit(pos - getTrailingWhitespace(file, pos).length(), 0, ">"));
+	}
 
-		FileChannel[] files = null;
-		try {
-			files = initChannels(overwrite, temp);
+	/**
+	 * Asks the parser for the first problem in the file and fixes it, over
+	 * and over again until there are none left.
+	 *
+	 * @param name
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static byte[] fixOneAtATime(String name, byte[] file) throws IOException {
+		Problem p;
+		while ((p = findProblems(file)) != null) {
+			List<Edit> edits = null;
+			switch (p.type)	{
+				case FRAGMENTS:
+					edits = fixFragments(file, p);
+					break;
+				case AND:
+					edits = fixAnd(file, getLineStarts(file), p);
+					break;
+				case TAG_MISMATCH:
+					edits = fixTagMismatch(file, getLineStarts(file), p);
+					break;
+				case CUT_OFF:
+					edits = fixCutOff(file, getLineStarts(file), p);
+					break;
+			}
+			if (edits == null) {
+				Logger.getLogger(NamedEntitySanitizer.class.getName()).log(Level.WARNING, "Failed to fix " + name);
+				break;
+			}
+			file = applyEdits(file, edits);
+		}
+		return file;
+	}
 
-			// insert
-			ByteBuffer replacement = Charset.forName("US-ASCII").encode(CharBuffer.wrap("<ROOT>"));
-			while (replacement.hasRemaining())
-				files[1].write(replacement);
+	private static boolean isWhitespace(int c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+	}
 
-			// unchanged
-			copyFile(files[0], files[1], -1);
+	private static boolean isNameStartChar(int c) {
+		return c >= 'A' && c <= 'Z' || c >= 'a' && c <= 'z' || c == '_' || c == ':';
+	}
 
-			// insert
-			replacement = Charset.forName("US-ASCII").encode(CharBuffer.wrap("</ROOT>" + getTrailingWhitespace(files[0], files[0].size())));
-			while (replacement.hasRemaining())
-				files[1].write(replacement);
-		} finally {
-			if (files != null) {
-				if (files[0] != null)
-					files[0].close();
-				if (files[1] != null)
-					files[1].close();
-			}
-		}
+	private static boolean isNameChar(int c) {
+		return isNameStartChar(c) || c >= '0' && c <= '9' || c == '-' || c == '.';
+	}
 
-		return overwrite.delete() && temp.renameTo(overwrite);
+	private static int skipName(byte[] file, int i) {
+		if (i >= file.length || !isNameStartChar(file[i]))
+			return i;
+		for (i++; i < file.length && isNameChar(file[i]); i++);
+		return i;
 	}
 
-	private static boolean fixAnd(File overwrite, Problem p) throws IOException {
-		File temp = File.createTempFile("WSJ.clean", ".temp");
+	private static int skipWhitespace(byte[] file, int i) {
+		while (i < file.length && isWhitespace(file[i]))
+			i++;
+		return i;
+	}
 
-		FileChannel[] files = null;
-		try {
-			files = initChannels(overwrite, temp);
+	private static boolean regionEquals(byte[] file, int i, String str) {
+		if (i + str.length() > file.length)
+			return false;
+		for (int j = 0; j < str.length(); j++)
+			if (file[i + j] != str.charAt(j))
+				return false;
+		return true;
+	}
 
-			// unchanged
-			copyFile(files[0], files[1], getByteOffset(overwrite, p.loc) - p.attachment.length());
+	/**
+	 * Skips the attributes and the closing delimiter of a start tag.
+	 *
+	 * @param file
+	 * @param i the index just after the element name
+	 * @return the index just after the start tag, negated if the element is
+	 * empty, or 0 if the start tag is malformed
+	 */
+	private static int skipStartTag(byte[] file, int i) {
+		List<String> attributes = new ArrayList<String>();
+		while (true) {
+			int j = skipWhitespace(file, i);
+			if (j >= file.length)
+				return 0;
+			if (file[j] == '>')
+				return j + 1;
+			if (file[j] == '/')
+				return j + 1 < file.length && file[j + 1] == '>' ? -(j + 2) : 0;
+			if (j == i)
+				return 0;
+
+			int nameEnd = skipName(file, j);
+			if (nameEnd == j)
+				return 0;
+			String name = new String(file, j, nameEnd - j);
+			if (attributes.contains(name))
+				return 0;
+			attributes.add(name);
+
+			j = skipWhitespace(file, nameEnd);
+			if (j >= file.length || file[j] != '=')
+				return 0;
+			j = skipWhitespace(file, j + 1);
+			if (j >= file.length || file[j] != '"' && file[j] != '\'')
+				return 0;
+			byte quote = file[j];
+			for (j++; j < file.length && file[j] != quote; j++)
+				if (file[j] == '<' || file[j] == '&' || file[j] >= 0 && file[j] < ' ' && !isWhitespace(file[j]))
+					return 0;
+			if (j >= file.length)
+				return 0;
+			i = j + 1;
+		}
+	}
 
-			// insert
-			ByteBuffer replacement = Charset.forName("US-ASCII").encode(CharBuffer.wrap("amp;"));
-			while (replacement.hasRemaining())
-				files[1].write(replacement);
+	/**
+	 * Skips a character reference.
+	 *
+	 * @param file
+	 * @param i the index of the "&#"
+	 * @return the index just after the ';', or 0 if the reference is malformed
+	 */
+	private static int skipCharacterReference(byte[] file, int i) {
+		int radix = 10;
+		i += 2;
+		if (i < file.length && file[i] == 'x') {
+			radix = 16;
+			i++;
+		}
+		int value = 0, start = i;
+		for (; i < file.length && Character.digit(file[i], radix) != -1; i++) {
+			value = value * radix + Character.digit(file[i], radix);
+			if (value > 0x10FFFF)
+				return 0;
+		}
+		if (i == start || i >= file.length || file[i] != ';')
+			return 0;
+		if (value < ' ' && !isWhitespace(value) || value >= 0xD800 && value <= 0xDFFF || value == 0xFFFE || value == 0xFFFF)
+			return 0;
+		return i + 1;
+	}
 
-			// unchanged
-			copyFile(files[0], files[1], -1);
-		} finally {
-			if (files != null) {
-				if (files[0] != null)
-					files[0].close();
-				if (files[1] != null)
-					files[1].close();
+	/**
+	 * Fixes every problem in a file in one pass, instead of asking the parser
+	 * for the first problem and rewriting the whole file to fix it over and
+	 * over again.
+	 *
+	 * Gives exactly the same output as fixing the problems one at a time,
+	 * including leaving everything after an undeclared entity untouched.
+	 * Anything else that findProblems() would not recognize is left to the
+	 * one at a time fixes.
+	 *
+	 * @param file the contents of the file
+	 * @return the edits that fix the file, or null if the file needs to be
+	 * fixed one problem at a time
+	 */
+	private static List<Edit> fixAll(byte[] file) {
+		List<Edit> edits = new ArrayList<Edit>();
+		List<String> open = new ArrayList<String>();
+		boolean rootFound = false, fragments = false, givenUp = false;
+		int i = 0;
+		while (i < file.length) {
+			byte c = file[i];
+			if (c == '<') {
+				if (i + 1 >= file.length)
+					return null;
+				if (file[i + 1] == '/') {
+					// end tag
+					if (open.isEmpty())
+						return null;
+					String expected = open.remove(open.size() - 1);
+					int nameStart = i + 2;
+					if (!regionEquals(file, nameStart, expected)) {
+						// TAG_MISMATCH: swap in the expected name and drop
+						// everything through the next '>'
+						int close = nameStart;
+						while (close < file.length && file[close] != '>')
+							close++;
+						if (close >= file.length)
+							return null;
+						edits.add(new Edit(nameStart, close + 1 - nameStart, expected + ">"));
+						i = close + 1;
+					} else {
+						int nameEnd = nameStart + expected.length();
+						int j = skipWhitespace(file, nameEnd);
+						if (j < file.length && file[j] == '>') {
+							i = j + 1;
+						} else {
+							// CUT_OFF: close the tag right after the name. Only
+							// fixable at the end of the file if this closes the
+							// root.
+							if (j >= file.length && open.size() != (fragments ? 1 : 0))
+								return null;
+							edits.add(new Edit(nameEnd, 0, ">"));
+							i = nameEnd;
+						}
+					}
+				} else if (isNameStartChar(file[i + 1])) {
+					// start tag
+					if (open.isEmpty() && rootFound) {
+						// FRAGMENTS: wrap everything in a new root
+						if (fragments)
+							return null;
+						fragments = true;
+						open.add("ROOT");
+					}
+					int nameEnd = skipName(file, i + 1);
+					int end = skipStartTag(file, nameEnd);
+					if (end == 0)
+						return null;
+					rootFound = true;
+					if (end > 0)
+						open.add(new String(file, i + 1, nameEnd - i - 1));
+					i = Math.abs(end);
+				} else {
+					return null;
+				}
+			} else if (open.isEmpty()) {
+				// prolog and trailing section
+				if (!isWhitespace(c))
+					return null;
+				i++;
+			} else if (c == '&') {
+				int nameStart = i + 1;
+				if (nameStart < file.length && file[nameStart] == '#') {
+					i = skipCharacterReference(file, i);
+					if (i == 0)
+						return null;
+					continue;
+				}
+				int nameEnd = skipName(file, nameStart);
+				if (nameEnd >= file.length)
+					return null;
+				if (nameEnd == nameStart || file[nameEnd] != ';') {
+					// AND: escape the ampersand
+					edits.add(new Edit(nameStart, 0, "amp;"));
+					i = nameStart;
+				} else {
+					String name = new String(file, nameStart, nameEnd - nameStart);
+					if (!name.equals("amp") && !name.equals("lt") && !name.equals("gt") && !name.equals("quot") && !name.equals("apos")) {
+						// findProblems() gives up on undeclared entities, so
+						// nothing after one ever gets fixed
+						givenUp = true;
+						break;
+					}
+					i = nameEnd + 1;
+				}
+			} else {
+				// character data
+				if (c >= 0 && c < ' ' && !isWhitespace(c))
+					return null;
+				if (c == '\r' && (i + 1 >= file.length || file[i + 1] != '\n'))
+					return null;
+				if (c == ']' && regionEquals(file, i, "]]>"))
+					return null;
+				i++;
 			}
 		}
+		if (!givenUp && (!rootFound || open.size() != (fragments ? 1 : 0)))
+			return null;
 
-		return overwrite.delete() && temp.renameTo(overwrite);
+		if (fragments) {
+			edits.add(0, new Edit(0, 0, "<ROOT>"));
+			edits.add(new Edit(file.length, 0, "</ROOT>" + getTrailingWhitespace(file, file.length)));
+		}
+		return edits;
 	}
 
-	private static boolean fixTagMismatch(File overwrite, Problem p) throws IOException {
-		File temp = File.createTempFile("WSJ.clean", ".temp");
+	/**
+	 * Fixes a file in one pass without checking the result. A parser that
+	 * still chokes on the result should fall back to fixOneAtATime().
+	 *
+	 * @param file
+	 * @return the fixed contents, or null if the file needs to be fixed one
+	 * problem at a time
+	 */
+	public static byte[] fixInOnePass(byte[] file) {
+		List<Edit> edits = fixAll(file);
+		return edits == null ? null : applyEdits(file, edits);
+	}
 
-		FileChannel[] files = null;
+	public static byte[] readFile(File file) throws IOException {
+		byte[] contents = new byte[(int) file.length()];
+		InputStream stream = new FileInputStream(file);
 		try {
-			files = initChannels(overwrite, temp);
-
-			// unchanged
-			copyFile(files[0], files[1], getByteOffset(overwrite, p.loc));
-
-			// insert
-			ByteBuffer replacement = Charset.forName("US-ASCII").encode(CharBuffer.wrap(p.attachment.substring(2)));
-			while (replacement.hasRemaining())
-				files[1].write(replacement);
-
-			// delete
-			ByteBuffer original = ByteBuffer.allocate(64);
-			boolean found = false;
-			do {
-				original.clear();
-				files[0].read(original);
-				original.flip();
-				while (!found && original.hasRemaining())
-					found = ((char) original.get() == '>');
-			} while (!found && files[0].position() < files[0].size());
-			if (!found) {
-				Logger.getLogger(NamedEntitySanitizer.class.getName()).log(Level.WARNING, "Failed to fix " + overwrite);
-				return false;
-			}
-			while (original.hasRemaining())
-				files[1].write(original);
-
-			// unchanged
-			copyFile(files[0], files[1], -1);
+			for (int offset = 0, read; offset < contents.length; offset += read)
+				if ((read = stream.read(contents, offset, contents.length - offset)) == -1)
+					throw new IOException("Unexpected end of " + file);
 		} finally {
-			if (files != null) {
-				if (files[0] != null)
-					files[0].close();
-				if (files[1] != null)
-					files[1].close();
-			}
+			stream.close();
 		}
-
-		return overwrite.delete() && temp.renameTo(overwrite);
+		return contents;
 	}
 
-	private static boolean fixCutOff(File overwrite, Problem p) throws IOException {
-		File temp = File.createTempFile("WSJ.clean", ".temp");
-
-		FileChannel[] files = null;
+	private static void writeFile(File file, byte[] contents) throws IOException {
+		FileOutputStream stream = new FileOutputStream(file);
 		try {
-			files = initChannels(overwrite, temp);
-
-			// unchanged
-			int pos = getByteOffset(overwrite, p.loc);
-			copyFile(files[0], files[1], pos - getTrailingWhitespace(files[0], pos).length());
-
-			// insert
-			ByteBuffer replacement = Charset.forName("US-ASCII").encode(CharBuffer.wrap(">"));
-			while (replacement.hasRemaining())
-				files[1].write(replacement);
-
-			// unchanged
-			copyFile(files[0], files[1], -1);
+			stream.write(contents);
 		} finally {
-			if (files != null) {
-				if (files[0] != null)
-					files[0].close();
-				if (files[1] != null)
-					files[1].close();
-			}
+			stream.close();
 		}
+	}
 
-		return overwrite.delete() && temp.renameTo(overwrite);
+	/**
+	 * Fixes one file of the corpus. Skipped if the manifest shows that the
+	 * source file did not change since it was last fixed.
+	 *
+	 * @param source
+	 * @param destination
+	 * @param name
+	 * @param manifest null to always fix the file
+	 * @throws IOException
+	 */
+	public static void correctProject(String source, String destination, String name, Manifest manifest) throws IOException {
+		File sourceFile = new File(source + '/' + name);
+		File destFile = new File(destination + '/' + name);
+		boolean check = manifest != null && destFile.exists();
+		if (check && manifest.isUnchanged(name, sourceFile))
+			return;
+
+		byte[] file = readFile(sourceFile);
+		if (check && manifest.isUnchanged(name, sourceFile, file))
+			// Only touched
+			return;
+
+		// The one at a time fixes are always right. Fall back to them if we
+		// missed anything.
+		byte[] fixed = fixInOnePass(file);
+		if (fixed != null) {
+			if (findProblems(fixed) != null) {
+				Logger.getLogger(NamedEntitySanitizer.class.getName()).log(Level.FINE, "Fixing " + name + " one problem at a time");
+				fixed = null;
+			}
+		}
+		if (fixed == null)
+			fixed = fixOneAtATime(name, file);
+		writeFile(destFile, fixed);
+		if (manifest != null)
+			manifest.record(name, sourceFile, file);
+		/*if (name.equals("wsj06c.qa.mk.tc")) {
+			System.out.println("FIX WSJ0664 new line issue");
+		} else if (name.equals("wsj10c.qa.tc.mk")) {
+			System.out.println("FIX WSJ1065 new line issue");
+		} else if (name.equals("wsj16c.qa.tc.bj")) {
+			System.out.println("FIX WSJ1671");
+		}*/
 	}
 
-	public static void correctAllProjects(String source, String destination) {
+	/**
+	 * Files are independent of each other, so they are fixed in parallel.
+	 * Only new and changed files are fixed again.
+	 *
+	 * @param source
+	 * @param destination
+	 * @param threads
+	 */
+	public static void correctAllProjects(final String source, final String destination, int threads) {
+		new File(destination).mkdirs();
+		final Manifest manifest;
 		try {
-			new File(destination).mkdirs();
-			Problem p;
-			for (String name : new File(source).list()) {
+			manifest = Manifest.load(destination);
+		} catch (IOException e) {
+			Logger.getLogger(NamedEntitySanitizer.class.getName()).log(Level.WARNING, "Could not sanitize named entity annotations", e);
+			return;
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Void>> fixed = new ArrayList<Future<Void>>();
+			for (final String name : new File(source).list()) {
 				if (!name.endsWith(".pron")) {
-					copyFile(new File(source + '/' + name), new File(destination + '/' + name));
-					while ((p = findProblems(new File(destination + '/' + name))) != null) {
-						switch (p.type)	{
-							case FRAGMENTS:
-								fixFragments(new File(destination + '/' + name), p);
-								break;
-							case AND:
-								fixAnd(new File(destination + '/' + name), p);
-								break;
-							case TAG_MISMATCH:
-								fixTagMismatch(new File(destination + '/' + name), p);
-								break;
-							case CUT_OFF:
-								fixCutOff(new File(destination + '/' + name), p);
-								break;
+					fixed.add(pool.submit(new Callable<Void>() {
+						@Override
+						public Void call() throws IOException {
+							correctProject(source, destination, name, manifest);
+							return null;
 						}
-					}
+					}));
+				}
+			}
+			for (Future<Void> file : fixed) {
+				try {
+					file.get();
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof IOException)
+						Logger.getLogger(NamedEntitySanitizer.class.getName()).log(Level.WARNING, "Could not sanitize named entity annotations", e.getCause());
+					else if (e.getCause() instanceof RuntimeException)
+						throw (RuntimeException) e.getCause();
+					else if (e.getCause() instanceof Error)
+						throw (Error) e.getCause();
+					else
+						throw new RuntimeException(e.getCause());
 				}
-				/*if (name.equals("wsj06c.qa.mk.tc")) {
-					System.out.println("FIX WSJ0664 new line issue");
-				} else if (name.equals("wsj10c.qa.tc.mk")) {
-					System.out.println("FIX WSJ1065 new line issue");
-				} else if (name.equals("wsj16c.qa.tc.bj")) {
-					System.out.println("FIX WSJ1671");
-				}*/
 			}
+			manifest.save();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 		} catch (IOException e) {
 			Logger.getLogger(NamedEntitySanitizer.class.getName()).log(Level.WARNING, "Could not sanitize named entity annotations", e);
+		} finally {
+			pool.shutdownNow();
 		}
 	}
 
+	public static void correctAllProjects(String source, String destination) {
+		correctAllProjects(source, destination, Runtime.getRuntime().availableProcessors());
+	}
+
 	public static void main(String[] args) throws IOException {
 		correctAllProjects("WSJ", "WSJ.clean");
 	}
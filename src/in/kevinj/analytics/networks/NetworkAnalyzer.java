@@ -533,21 +533,33 @@ public class NetworkAnalyzer {
 	}
 
 	public static void main(String[] args) throws XMLStreamException, IOException {
-		boolean refresh = false, noGraphs = false;
+		boolean refresh = false, incremental = false, resume = false, noGraphs = false;
+		int threads = Runtime.getRuntime().availableProcessors();
+		long memoryBudget = 0;
 		File coMentions = null;
 		File aliases = null;
 		for (int i = 0; i < args.length; i++)
 			if (args[i].equals("--force-refresh"))
 				refresh = true;
+			else if (args[i].equals("--incremental"))
+				incremental = true;
+			else if (args[i].equals("--resume"))
+				resume = true;
 			else if (args[i].equals("--no-graphs"))
 				noGraphs = true;
+			else if (args[i].equals("--threads"))
+				threads = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--memory-budget"))
+				memoryBudget = Long.parseLong(args[++i]) * 1024 * 1024;
 			else if (coMentions == null)
 				coMentions = new File(args[i]);
 			else if (aliases == null)
 				aliases = new File(args[i]);
 
 		PrintStream temp = PrintlnToLog.intercept();
-		GraphModel graphModel = generateClusters(CoOccurrenceExtractor.generateNetwork(refresh, coMentions, aliases));
+		// Edges that applyFilters() would hide are never generated.
+		CoOccurrenceExtractor.NetworkFilter filter = new CoOccurrenceExtractor.NetworkFilter(MIN_SENTENCES, 0, MIN_PMI, 0);
+		GraphModel graphModel = generateClusters(CoOccurrenceExtractor.generateNetwork(refresh, incremental, resume, coMentions, aliases, threads, filter, memoryBudget, null));
 		temp.close();
 
 		XMLOutputFactory factory = XMLOutputFactory.newInstance();
@@ -0,0 +1,185 @@
+package in.kevinj.analytics.networks;
+
+import java.util.Arrays;
+
+/**
+ * Counts the sentences and documents that mention each pair of entities. Each
+ * entity is identified by a dense, non-negative int ID, and a pair by both IDs
+ * packed into one long, so counting a pair allocates nothing.
+ *
+ * Pairs are kept in an open addressing hash table with linear probing.
+ * Documents are counted by stamping each pair with the last document that
+ * mentioned it, so documents must be counted one after another. Counters that
+ * saw different documents can be merged by adding up their counts.
+ */
+public class PairCounter {
+	/**
+	 * Never a packed pair, since IDs are not negative.
+	 */
+	private static final long FREE = -1;
+
+	private long[] keys;
+	private int[] sentences;
+	private int[] documents;
+	private int[] lastDocument;
+	private int size;
+
+	public PairCounter() {
+		this(16);
+	}
+
+	/**
+	 * @param expected the number of pairs to make room for
+	 */
+	public PairCounter(int expected) {
+		int capacity = 16;
+		while (capacity / 2 < expected)
+			capacity *= 2;
+		allocate(capacity);
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		Arrays.fill(keys, FREE);
+		sentences = new int[capacity];
+		documents = new int[capacity];
+		lastDocument = new int[capacity];
+	}
+
+	public static long pack(int a, int b) {
+		return (long) a << 32 | b & 0xFFFFFFFFL;
+	}
+
+	public static int first(long pair) {
+		return (int) (pair >>> 32);
+	}
+
+	public static int second(long pair) {
+		return (int) pair;
+	}
+
+	private static int hash(long pair) {
+		long h = pair * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ h >>> 32);
+	}
+
+	/**
+	 * @param pair
+	 * @return the slot that holds the pair, or the free slot it would go in
+	 */
+	private int find(long pair) {
+		int mask = keys.length - 1;
+		int slot = hash(pair) & mask;
+		while (keys[slot] != pair && keys[slot] != FREE)
+			slot = (slot + 1) & mask;
+		return slot;
+	}
+
+	private void grow() {
+		long[] oldKeys = keys;
+		int[] oldSentences = sentences, oldDocuments = documents, oldLastDocument = lastDocument;
+		allocate(oldKeys.length * 2);
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] == FREE)
+				continue;
+			int slot = find(oldKeys[i]);
+			keys[slot] = oldKeys[i];
+			sentences[slot] = oldSentences[i];
+			documents[slot] = oldDocuments[i];
+			lastDocument[slot] = oldLastDocument[i];
+		}
+	}
+
+	/**
+	 * Counts one more sentence that mentions a pair.
+	 *
+	 * @param pair
+	 * @param document the position of the sentence's document. The pair is
+	 * counted once for each document in a row that mentions it.
+	 */
+	public void add(long pair, int document) {
+		int slot = find(pair);
+		if (keys[slot] == FREE) {
+			slot = insert(pair, slot);
+			documents[slot] = 1;
+			lastDocument[slot] = document;
+		} else if (lastDocument[slot] != document) {
+			documents[slot]++;
+			lastDocument[slot] = document;
+		}
+		sentences[slot]++;
+	}
+
+	/**
+	 * @param pair
+	 * @param slot the free slot from find()
+	 * @return the slot the pair was put in
+	 */
+	private int insert(long pair, int slot) {
+		if (size + 1 > keys.length / 2) {
+			grow();
+			slot = find(pair);
+		}
+		keys[slot] = pair;
+		size++;
+		return slot;
+	}
+
+	/**
+	 * Adds the counts of another counter. No document may have been counted
+	 * by both.
+	 *
+	 * @param other
+	 */
+	public void addAll(PairCounter other) {
+		for (int i = other.next(0); i != -1; i = other.next(i + 1)) {
+			int slot = find(other.keys[i]);
+			if (keys[slot] == FREE) {
+				slot = insert(other.keys[i], slot);
+				lastDocument[slot] = other.lastDocument[i];
+			}
+			sentences[slot] += other.sentences[i];
+			documents[slot] += other.documents[i];
+		}
+	}
+
+	/**
+	 * @param pair
+	 * @return the slot that holds the pair, or -1 if it was never counted
+	 */
+	public int indexOf(long pair) {
+		int slot = find(pair);
+		return keys[slot] == FREE ? -1 : slot;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Walks the pairs in no particular order, e.g.
+	 * {@code for (int i = next(0); i != -1; i = next(i + 1))}.
+	 *
+	 * @param slot
+	 * @return the first slot at or after {@code slot} that holds a pair, or
+	 * -1 if there are none
+	 */
+	public int next(int slot) {
+		for (; slot < keys.length; slot++)
+			if (keys[slot] != FREE)
+				return slot;
+		return -1;
+	}
+
+	public long getPair(int slot) {
+		return keys[slot];
+	}
+
+	public int getSentences(int slot) {
+		return sentences[slot];
+	}
+
+	public int getDocuments(int slot) {
+		return documents[slot];
+	}
+}
@@ -0,0 +1,316 @@
+package in.kevinj.analytics.networks;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Pair counts spilled from PairCounters to disk so that the pairs of a corpus
+ * never have to fit in memory at once.
+ *
+ * Each spill is written as a run sorted by pair. The runs are merged back
+ * together, adding up the counts of the same pair, when the counts are read.
+ * As with PairCounter.addAll(), no document may have been counted in more
+ * than one run.
+ *
+ * Every run is deleted as soon as it is merged or fails to be written, and
+ * {@link #delete()} deletes the rest, so nothing is left behind for the JVM
+ * to clean up at exit.
+ */
+public class PairRuns {
+	/**
+	 * Runs merged at once. More runs than this are merged in several passes.
+	 */
+	private static final int MAX_OPEN_RUNS = 64;
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final Comparator<Run> BY_PAIR = new Comparator<Run>() {
+		@Override
+		public int compare(Run a, Run b) {
+			return a.pair < b.pair ? -1 : a.pair > b.pair ? 1 : 0;
+		}
+	};
+
+	/**
+	 * Reads the counts of pairs in order, one pair at a time.
+	 */
+	public static abstract class Cursor {
+		public long pair;
+		public int sentences, documents;
+
+		/**
+		 * @return false once there are no more pairs
+		 * @throws IOException
+		 */
+		public abstract boolean next() throws IOException;
+
+		public abstract void close() throws IOException;
+	}
+
+	private static class Run extends Cursor {
+		private final File file;
+		private final DataInputStream in;
+
+		public Run(File file) throws IOException {
+			this.file = file;
+			this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+		}
+
+		@Override
+		public boolean next() throws IOException {
+			try {
+				pair = in.readLong();
+			} catch (EOFException e) {
+				return false;
+			}
+			sentences = in.readInt();
+			documents = in.readInt();
+			return true;
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				in.close();
+			} finally {
+				file.delete();
+			}
+		}
+	}
+
+	private static class Merge extends Cursor {
+		private final List<Run> runs;
+		private final PriorityQueue<Run> heads;
+
+		public Merge(List<Run> runs) throws IOException {
+			this.runs = runs;
+			this.heads = new PriorityQueue<Run>(Math.max(runs.size(), 1), BY_PAIR);
+			for (Run run : runs)
+				if (run.next())
+					heads.add(run);
+		}
+
+		@Override
+		public boolean next() throws IOException {
+			if (heads.isEmpty())
+				return false;
+
+			Run run = heads.poll();
+			pair = run.pair;
+			sentences = run.sentences;
+			documents = run.documents;
+			if (run.next())
+				heads.add(run);
+			while (!heads.isEmpty() && heads.peek().pair == pair) {
+				run = heads.poll();
+				sentences += run.sentences;
+				documents += run.documents;
+				if (run.next())
+					heads.add(run);
+			}
+			return true;
+		}
+
+		@Override
+		public void close() throws IOException {
+			// Close every run even if one fails, so that they are all deleted.
+			IOException failure = null;
+			for (Run run : runs) {
+				try {
+					run.close();
+				} catch (IOException e) {
+					if (failure == null)
+						failure = e;
+				}
+			}
+			if (failure != null)
+				throw failure;
+		}
+	}
+
+	private final File directory;
+	private final List<File> runs;
+	private boolean deleted;
+
+	/**
+	 * @param directory where to write the runs, or null for the default
+	 * temporary directory
+	 */
+	public PairRuns(File directory) {
+		this.directory = directory;
+		this.runs = new ArrayList<File>();
+	}
+
+	private File newRun() throws IOException {
+		return File.createTempFile("pairs", ".run", directory);
+	}
+
+	private static void delete(List<File> files) {
+		for (File file : files)
+			file.delete();
+	}
+
+	private static void write(DataOutputStream out, long pair, int sentences, int documents) throws IOException {
+		out.writeLong(pair);
+		out.writeInt(sentences);
+		out.writeInt(documents);
+	}
+
+	/**
+	 * Writes every pair of {@code counter} to a new run. The counter can be
+	 * thrown away afterwards. Safe to call from several threads at once.
+	 *
+	 * @param counter
+	 * @throws IOException
+	 */
+	public void spill(PairCounter counter) throws IOException {
+		if (counter.size() == 0)
+			return;
+
+		long[] pairs = new long[counter.size()];
+		int n = 0;
+		for (int i = counter.next(0); i != -1; i = counter.next(i + 1))
+			pairs[n++] = counter.getPair(i);
+		Arrays.sort(pairs);
+
+		File file = newRun();
+		boolean written = false;
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+			try {
+				for (long pair : pairs) {
+					int slot = counter.indexOf(pair);
+					write(out, pair, counter.getSentences(slot), counter.getDocuments(slot));
+				}
+			} finally {
+				out.close();
+			}
+			written = true;
+		} finally {
+			if (!written)
+				file.delete();
+		}
+		synchronized (runs) {
+			// A thread still counting after the runs were given up on.
+			if (deleted)
+				file.delete();
+			else
+				runs.add(file);
+		}
+	}
+
+	/**
+	 * Deletes {@code files} if they cannot all be opened.
+	 *
+	 * @param files
+	 * @return
+	 * @throws IOException
+	 */
+	private static Merge open(List<File> files) throws IOException {
+		List<Run> opened = new ArrayList<Run>();
+		Merge merge = null;
+		try {
+			for (File file : files)
+				opened.add(new Run(file));
+			merge = new Merge(opened);
+			return merge;
+		} finally {
+			if (merge == null) {
+				for (Run run : opened) {
+					try {
+						run.close();
+					} catch (IOException e) {
+						// Already failing.
+					}
+				}
+				delete(files.subList(opened.size(), files.size()));
+			}
+		}
+	}
+
+	/**
+	 * Merges runs into one, so that fewer have to be open at once. Deletes
+	 * {@code files} whether or not the merge succeeds.
+	 *
+	 * @param files
+	 * @return
+	 * @throws IOException
+	 */
+	private File mergeToRun(List<File> files) throws IOException {
+		File file = newRun();
+		boolean written = false;
+		try {
+			Merge merge = open(files);
+			try {
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+				try {
+					while (merge.next())
+						write(out, merge.pair, merge.sentences, merge.documents);
+				} finally {
+					out.close();
+				}
+			} finally {
+				merge.close();
+			}
+			written = true;
+		} finally {
+			if (!written)
+				file.delete();
+		}
+		return file;
+	}
+
+	/**
+	 * Merges every run spilled so far. The runs are deleted as the cursor is
+	 * closed, or right away if they cannot be merged.
+	 *
+	 * @return the counts of every pair, in order of their packed IDs
+	 * @throws IOException
+	 */
+	public Cursor merge() throws IOException {
+		List<File> remaining;
+		synchronized (runs) {
+			remaining = new ArrayList<File>(runs);
+			runs.clear();
+		}
+		while (remaining.size() > MAX_OPEN_RUNS) {
+			List<File> merged = new ArrayList<File>();
+			int i = 0;
+			try {
+				for (; i < remaining.size(); i += MAX_OPEN_RUNS)
+					merged.add(mergeToRun(remaining.subList(i, Math.min(i + MAX_OPEN_RUNS, remaining.size()))));
+			} finally {
+				// mergeToRun() already deleted the runs it failed on.
+				if (i < remaining.size()) {
+					delete(merged);
+					delete(remaining.subList(Math.min(i + MAX_OPEN_RUNS, remaining.size()), remaining.size()));
+				}
+			}
+			remaining = merged;
+		}
+		return open(remaining);
+	}
+
+	/**
+	 * Deletes every run that has not been merged, and any spilled from now
+	 * on. Does not affect a cursor already returned by {@link #merge()}.
+	 */
+	public void delete() {
+		synchronized (runs) {
+			deleted = true;
+			delete(runs);
+			runs.clear();
+		}
+	}
+}
@@ -1,10 +1,8 @@
 package in.kevinj.analytics.networks;
 
+import java.io.Serializable;
 import java.util.LinkedHashSet;
 import java.util.Set;
-import java.util.Stack;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * A heuristic black box that determines whether two company names refer to the
@@ -16,10 +14,11 @@ import java.util.regex.Pattern;
  * @author Kevin Jin
  */
 public class ProperNounProform {
-	public static class NamedEntity implements Comparable<NamedEntity> {
+	@SuppressWarnings("serial")
+	public static class NamedEntity implements Comparable<NamedEntity>, Serializable {
 		public final Set<String> aliases;
 		public String key;
-		private int maxFrontDeletes, maxBackDeletes;
+		int maxFrontDeletes, maxBackDeletes;
 
 		public NamedEntity(String initial) {
 			aliases = new LinkedHashSet<String>();
@@ -43,69 +42,12 @@ public class ProperNounProform {
 		}
 	}
 
-	private static String removePrefix(String name) {
-		Matcher m = Pattern.compile("^("
-			// Begins with "the"
-			+ "[Tt][Hh][Ee]"
-		+ " )+(.*)$").matcher(name);
-		if (m.matches())
-			name = m.group(2);
-		return name;
-	}
-
-	// TODO: get a dictionary similar to
-	// https://en.wikipedia.org/wiki/Types_of_business_entity
-	private static String removeSuffix(String name) {
-		Matcher m = Pattern.compile("^(.*?)("
-			+ " (, )?("
-				// Ends with "and Company", or variations
-				+ "((& ?|and )?[Cc]o(mpany| ?\\.)?)"
-				// Ends with a period e.g. Corp.
-				+ "|[^ ]{1,5}( ?\\.)"
-				// Ends with all caps token between 2 to 4 letters long e.g. PLC
-				+ "|[A-Z]{2,5}" // RLLLP is 5 characters
-//				+ "|'s" // NE tagger mistakenly includes possessive sometimes
-			+ ")"
-		+ ")+$").matcher(name);
-		if (m.matches())
-			name = m.group(1);
-		return name;
-	}
-
-	private static String removePunct(String name, boolean periods) {
-		name = name
-			// Goldman, Sachs & Co. -> Goldman Sachs & Co.
-			.replaceAll(" ,$", "").replaceAll("^, ", "").replaceAll("( |),\\1", "$1")
-			// Time-Warner -> Time Warner
-			.replaceAll(" -$", "").replaceAll("^- ", "").replaceAll("( |)-\\1", "$1")
-			// Dunkin' -> Dunkin
-			.replaceAll(" '$", "").replaceAll("^' ", "").replaceAll("( |)'\\1", "$1")
-			// Guber/Peters -> Guber Peters
-			.replaceAll(" /$", "").replaceAll("^/ ", "").replaceAll("( |)/\\1", "$1")
-			// Goldman, Sachs & Co. -> Goldman, Sachs and Co.
-			.replaceAll(" &$", " and").replaceAll("^& ", "and ").replaceAll("( |)&\\1", " and ")
-		;
-		if (periods)
-			name = name.replaceAll(" \\.$", "").replaceAll("^\\. ", "").replaceAll("( |)\\.\\1", "$1");
-		return name;
-	}
-
-	/**
-	 * Not an article, coordinate conjunction, preposition, or punctuation.
-	 *
-	 * @param token
-	 * @return
-	 */
-	private static boolean isImportantToken(String token) {
-		return token.matches("^[A-Z].*");
-	}
-
-	private static int nextCapital(String str, int start) {
-		for (int i = start; i < str.length(); i++)
-			if (Character.isUpperCase(str.charAt(i)))
-				return i;
-		return -1;
-	}
+	private static final ThreadLocal<AcronymMatcher> MATCHER = new ThreadLocal<AcronymMatcher>() {
+		@Override
+		protected AcronymMatcher initialValue() {
+			return new AcronymMatcher();
+		}
+	};
 
 	/**
 	 * E.g. "Aluminum Company of America" == "Alcoa",
@@ -125,130 +67,19 @@ public class ProperNounProform {
 	 * other. Otherwise, returns the number of tokens that remain in the full
 	 * name not found in the abbreviation.
 	 */
-	private static int isPortmanteauOrAcronym(String name1, String name2, boolean firstIsAbbrev) {
+	private static int isPortmanteauOrAcronym(NameNormalizer.Variant name1, NameNormalizer.Variant name2, boolean firstIsAbbrev) {
 		// Comma tokens and commas inside tokens are insignificant.
-		// Also replace & with and.
-		name1 = removePunct(name1, false);
-		name2 = removePunct(name2, false);
-
-		String abbrev;
-		String[] fullName;
-		if (firstIsAbbrev) {
-			abbrev = name1;
-			fullName = name2.split(" ");
-		} else {
-			abbrev = name2;
-			fullName = name1.split(" ");
-		}
-
-		Stack<int[]> backtrack = new Stack<int[]>();
-		int i, j, k, m;
-		for (i = 0, j = 0, k = 0, m = 0; i < abbrev.length(); ) {
-			boolean hasNextCharacter = k < fullName[j].length();
-			int nextCapital = nextCapital(fullName[j], k + 1);
-			int thisOrNextCapital = hasNextCharacter && Character.isUpperCase(fullName[j].charAt(k)) ? k : nextCapital;
-
-			// Can try to stay on the current word
-			boolean option1 = hasNextCharacter && (Character.toLowerCase(abbrev.charAt(i)) == Character.toLowerCase(fullName[j].charAt(k)));
-			// Can try to move onto the next word
-			boolean option2 = j + 1 < fullName.length && (m != 0 || !isImportantToken(fullName[j]));
-			// Period can also jump to next capital letter in fullName[j]
-			boolean option3 = m != 0 && (abbrev.charAt(i) == ' ' || abbrev.charAt(i) == '.') && nextCapital != -1;
-			// Capital letters can also jump to next capital letter in fullName[j]
-			boolean option4 = m != 0 && Character.isUpperCase(abbrev.charAt(i)) && nextCapital != -1;
-
-			if (Character.isUpperCase(abbrev.charAt(i))) {
-				if (option1 && Character.isLowerCase(fullName[j].charAt(k)))
-					// "TWA"/="Time Warner". "MCI"/="McDermott International".
-					// If next letter in abbrev is capitalized and next letter
-					// in fullName[j] is not, must skip.
-					option1 = false;
-				if (option2 && thisOrNextCapital != -1 && fullName[j].charAt(thisOrNextCapital) != abbrev.charAt(i))
-					// Have to go to next capital letter in fullName[j] first
-					// before skipping to the next word.
-					option2 = false;
-				if (option4 && m != 0 && hasNextCharacter && Character.isUpperCase(fullName[j].charAt(k)))
-					// abbrev must not skip capital letter in fullName[j]
-					option4 = false;
-			}
-
-			if (option1) {
-				// Keep track of all alternatives
-				if (option2) {
-					// TODO: do the unimportant token loop outside of option1 branch
-					int advance = 1;
-					do {
-						if (Character.toLowerCase(abbrev.charAt(i)) == Character.toLowerCase(fullName[j + advance].charAt(0)))
-							backtrack.push(new int[] { i, j + advance, 0 });
-						advance++;
-					} while (j + advance < fullName.length && !isImportantToken(fullName[j + advance - 1]));
-				}
-				if (option3) {
-					if (i + 1 < abbrev.length() && Character.toUpperCase(abbrev.charAt(i + 1)) == fullName[j].charAt(nextCapital))
-						backtrack.push(new int[] { i + 1, j, nextCapital });
-				}
-				if (option4) {
-					if (Character.toUpperCase(abbrev.charAt(i)) == fullName[j].charAt(nextCapital))
-						backtrack.push(new int[] { i, j, nextCapital });
-				}
-
-				// Stay on the current token
-				i++;
-				k++;
-				m++;
-			} else if (option2) {
-				// TODO: do unimportant token loop backtrack
-				if (option3) {
-					if (i + 1 < abbrev.length() && Character.toUpperCase(abbrev.charAt(i + 1)) == fullName[j].charAt(nextCapital))
-						backtrack.push(new int[] { i + 1, j, nextCapital });
-				}
-				if (option4) {
-					if (Character.toUpperCase(abbrev.charAt(i)) == fullName[j].charAt(nextCapital))
-						backtrack.push(new int[] { i, j, nextCapital });
-				}
-
-				// Move onto the next token
-				if (abbrev.charAt(i) == ' ' || abbrev.charAt(i) == '.')
-					i++;
-				j++;
-				k = 0;
-				m = 0;
-			} else if (option3) {
-				if (option4) {
-					if (Character.toUpperCase(abbrev.charAt(i)) == fullName[j].charAt(nextCapital))
-						backtrack.push(new int[] { i, j, nextCapital });
-				}
-
-				i++;
-				k = nextCapital;
-				m = 0;
-			} else if (option4) {
-				k = nextCapital;
-				m = 0;
-			} else if (abbrev.charAt(i) == ' ' || abbrev.charAt(i) == '.') {
-				// Try ignoring the character
-				i++;
-			} else if (!backtrack.isEmpty()) {
-				// Try an alternation
-				int[] temp = backtrack.pop();
-				i = temp[0];
-				j = temp[1];
-				k = temp[2];
-			} else {
-				// Abbreviation candidate includes a char not in the full name
-				return -1;
-			}
-		}
-
-		if (k != 0)
-			j++;
-		return fullName.length - j;
+		// Also replace & with and. Both were done once in NameNormalizer.
+		if (firstIsAbbrev)
+			return MATCHER.get().match(name1.punct, name2.tokens);
+		else
+			return MATCHER.get().match(name2.punct, name1.tokens);
 	}
 
 	@SuppressWarnings("unused")
 	private static int isPortmanteauOrAcronym(String name1, String name2) {
 		boolean firstIsAbbrev = name1.length() < name2.length();
-		if (isPortmanteauOrAcronym(name1, name2, firstIsAbbrev) < 0)
+		if (isPortmanteauOrAcronym(NameNormalizer.normalize(name1).original, NameNormalizer.normalize(name2).original, firstIsAbbrev) < 0)
 			return 0;
 		else
 			if (firstIsAbbrev)
@@ -257,19 +88,10 @@ public class ProperNounProform {
 				return 1;
 	}
 
-	private static String join(String[] array, String delimit, int from, int to) {
-		to = Math.min(to, array.length);
-		if (from >= to)
-			return "";
-
-		StringBuilder sb = new StringBuilder();
-		sb.append(array[from]);
-		for (int i = from + 1; i < to; i++)
-			sb.append(delimit).append(array[i]);
-		return sb.toString();
+	private static int isPortmanteauOrAcronym(NameNormalizer.Variant name1, NameNormalizer.Variant name2) {
+		return isPortmanteauOrAcronym(name1, name2, name1.name.length() < name2.name.length());
 	}
 
-	// FIXME: performance issues in here?
 	/**
 	 * Performs deletion on tokens before attempting isPortmanteauOrAcronym().
 	 *
@@ -277,68 +99,58 @@ public class ProperNounProform {
 	 * @param name2
 	 * @return
 	 */
-	private static int isSubsetPortmanteauOrAcronym(String name1, String name2) {
-		boolean firstIsAbbrev = name1.length() < name2.length();
-		String clean1 = name1;
-		String clean2 = name2;
+	private static int isSubsetPortmanteauOrAcronym(NameNormalizer.Form name1, NameNormalizer.Form name2) {
+		boolean firstIsAbbrev = name1.raw.length() < name2.raw.length();
+		NameNormalizer.Variant clean1 = name1.original;
+		NameNormalizer.Variant clean2 = name2.original;
 
 		// First try without shortening the names
-		int back = isPortmanteauOrAcronym(clean1, clean2, clean1.length() < clean2.length());
+		int back = isPortmanteauOrAcronym(clean1, clean2);
 		if (back == 0)
 			return firstIsAbbrev ? 2 : 1;
 
 		if (firstIsAbbrev) {
 			// name1 is shorter. Try shortening name2 in a couple of ways
-			clean2 = removePrefix(removeSuffix(name2));
-			back = isPortmanteauOrAcronym(clean1, clean2, clean1.length() < clean2.length());
-			if (back == 0)
-				return firstIsAbbrev ? 2 : 1;
-			/*clean2 = removePrefix(name2);
-			back = isPortmanteauOrAcronym(clean1, clean2, clean1.length() < clean2.length());
+			clean2 = name2.stripped;
+			back = isPortmanteauOrAcronym(clean1, clean2);
 			if (back == 0)
 				return firstIsAbbrev ? 2 : 1;
-			clean2 = removeSuffix(name2);
-			back = isPortmanteauOrAcronym(clean1, clean2, clean1.length() < clean2.length());
-			if (back == 0)
-				return firstIsAbbrev ? 2 : 1;*/
 		} else {
 			// name2 is shorter. Try shortening name1 in a couple of ways
-			clean1 = removePrefix(removeSuffix(name1));
-			back = isPortmanteauOrAcronym(clean1, clean2, clean1.length() < clean2.length());
+			clean1 = name1.stripped;
+			back = isPortmanteauOrAcronym(clean1, clean2);
 			if (back == 0)
 				return firstIsAbbrev ? 2 : 1;
-			/*clean1 = removePrefix(name1);
-			back = isPortmanteauOrAcronym(clean1, clean2, clean1.length() < clean2.length());
-			if (back == 0)
-				return firstIsAbbrev ? 2 : 1;
-			clean1 = removeSuffix(name1);
-			back = isPortmanteauOrAcronym(clean1, clean2, clean1.length() < clean2.length());
-			if (back == 0)
-				return firstIsAbbrev ? 2 : 1;*/
 		}
 
 		// Try shortening both names in a couple of ways
-		clean1 = removePrefix(removeSuffix(name1));
-		clean2 = removePrefix(removeSuffix(name2));
-		back = isPortmanteauOrAcronym(clean1, clean2, clean1.length() < clean2.length());
-		if (back == 0)
-			return firstIsAbbrev ? 2 : 1;
-		/*clean1 = removePrefix(name1);
-		clean2 = removePrefix(name2);
-		back = isPortmanteauOrAcronym(clean1, clean2, clean1.length() < clean2.length());
+		clean1 = name1.stripped;
+		clean2 = name2.stripped;
+		back = isPortmanteauOrAcronym(clean1, clean2);
 		if (back == 0)
 			return firstIsAbbrev ? 2 : 1;
-		clean1 = removeSuffix(name1);
-		clean2 = removeSuffix(name2);
-		back = isPortmanteauOrAcronym(clean1, clean2, clean1.length() < clean2.length());
-		if (back == 0)
-			return firstIsAbbrev ? 2 : 1;*/
 
 		return 0;
 	}
 
-	private static boolean isEmpty(String[] array) {
-		return array.length == 0 || array.length == 1 && "".equals(array[0]);
+	/**
+	 * Whether tokens {@code from} (inclusive) to {@code to} (exclusive) of
+	 * {@code toShorten}, joined by spaces, equalsIgnoreCase() all of
+	 * {@code abbrev}, joined by spaces.
+	 *
+	 * @param toShorten
+	 * @param from
+	 * @param to
+	 * @param abbrev
+	 * @return
+	 */
+	private static boolean regionEquals(String[] toShorten, int from, int to, String[] abbrev) {
+		if (to - from != abbrev.length)
+			return false;
+		for (int i = 0; i < abbrev.length; i++)
+			if (!toShorten[from + i].equals(abbrev[i]))
+				return false;
+		return true;
 	}
 
 	// TODO: priority system if multiple named entities can fit. Exact match is
@@ -357,26 +169,41 @@ public class ProperNounProform {
 	 * @return
 	 */
 	public static boolean addAlias(NamedEntity ent, String name2) {
+		return addAlias(ent, name2, null);
+	}
+
+	/**
+	 * @param ent
+	 * @param name2
+	 * @param carry if not null, the entity whose key is {@code name2}. Its
+	 * deletion allowances are carried over into {@code ent}.
+	 * @return
+	 */
+	private static boolean addAlias(NamedEntity ent, String name2, NamedEntity carry) {
 		String name1 = ent.key;
+		if (AliasStatistics.isEnabled())
+			AliasStatistics.addAlias();
+		NameNormalizer.Form form1 = NameNormalizer.normalize(name1);
+		NameNormalizer.Form form2 = NameNormalizer.normalize(name2);
 
-		String[] clean1 = removePunct(removePrefix(removeSuffix(name1)), true).split(" ");
-		String[] clean2 = removePunct(removePrefix(removeSuffix(name2)), true).split(" ");
-		if (isEmpty(clean1) && isEmpty(clean2))
+		if (form1.clean == null && form2.clean == null)
 			// If both are empty.
 			return name1.equalsIgnoreCase(name2);
-		else if (isEmpty(clean1) || isEmpty(clean2))
+		else if (form1.clean == null || form2.clean == null)
 			// If one is empty.
 			return false;
 
-		String[] toShorten;
-		String abbrev;
-		if (clean1.length > clean2.length) {
-			toShorten = clean1;
-			abbrev = join(clean2, " ", 0, clean2.length);
+		NameNormalizer.Form toShorten;
+		NameNormalizer.Form abbrev;
+		if (form1.clean.length > form2.clean.length) {
+			toShorten = form1;
+			abbrev = form2;
 		} else {
-			toShorten = clean2;
-			abbrev = join(clean1, " ", 0, clean1.length);
+			toShorten = form2;
+			abbrev = form1;
 		}
+		int length = toShorten.clean.length;
+		int windows = 0;
 		// Initially only allow one additional token at end or start of name.
 		// If we find an alias that is longer, then that alias becomes the
 		// primary representation but we still allow future names to delete up
@@ -392,13 +219,14 @@ public class ProperNounProform {
 			for (int back = 0; back <= ent.maxBackDeletes + 1; back++) {
 				// TODO: if !isImportantToken(deleted word in back), then
 				// continue and allow one more word to be deleted from the back.
-				String shorter = join(toShorten, " ", front, toShorten.length - back);
+				int to = length - back;
+				windows++;
 				// If we come down to a single token and it's unimportant, like
 				// "and" or ".", then this can't be an alias.
-				if (front + 1 >= toShorten.length - back && !isImportantToken(shorter))
+				if (front + 1 >= to && !(front < to && toShorten.important[front]))
 					continue;
 
-				if (shorter.equalsIgnoreCase(abbrev)) {
+				if (regionEquals(toShorten.folded, front, to, abbrev.folded)) {
 					if (name2.length() > name1.length()) {
 						ent.key = name2;
 						ent.maxFrontDeletes += front;
@@ -407,34 +235,62 @@ public class ProperNounProform {
 						ent.maxFrontDeletes = Math.max(ent.maxFrontDeletes, front);
 						ent.maxBackDeletes = Math.max(ent.maxBackDeletes, back);
 					}
+					if (carry != null) {
+						// Deletions allowed by carry are relative to name2. If
+						// name2 was shortened from the key we kept, shift them.
+						int carryFront = carry.maxFrontDeletes;
+						int carryBack = carry.maxBackDeletes;
+						if (toShorten == form1 && ent.key == name1) {
+							carryFront += front;
+							carryBack += back;
+						}
+						ent.maxFrontDeletes = Math.max(ent.maxFrontDeletes, carryFront);
+						ent.maxBackDeletes = Math.max(ent.maxBackDeletes, carryBack);
+					}
 					ent.aliases.add(name2);
+					if (AliasStatistics.isEnabled())
+						AliasStatistics.deletionWindows(windows);
 					return true;
 				}
 			}
 		}
+		if (AliasStatistics.isEnabled())
+			AliasStatistics.deletionWindows(windows);
 
 		// Acronyms and portmanteaus have lots of false positives, so never
 		// delete any tokens except for prefixes and suffixes in the test.
-		switch (isSubsetPortmanteauOrAcronym(name1, name2)) {
+		switch (isSubsetPortmanteauOrAcronym(form1, form2)) {
 			case 0:
 			default:
 				return false;
 			case 1:
-				ent.aliases.add(name2);
-				return true;
+				break;
 			case 2:
 				ent.key = name2;
-				ent.aliases.add(name2);
-				return true;
+				break;
+		}
+		if (carry != null) {
+			// No tokens were deleted, so carry's allowances apply as is.
+			ent.maxFrontDeletes = Math.max(ent.maxFrontDeletes, carry.maxFrontDeletes);
+			ent.maxBackDeletes = Math.max(ent.maxBackDeletes, carry.maxBackDeletes);
 		}
+		ent.aliases.add(name2);
+		return true;
 	}
 
+	/**
+	 * Folds {@code b} into {@code a} if {@code a} accepts the key of
+	 * {@code b}. Afterwards, {@code a} tolerates at least as many deletions as
+	 * either entity did before, so any name that either entity would have
+	 * accepted by deleting tokens is still accepted.
+	 *
+	 * @param a
+	 * @param b
+	 * @return
+	 */
 	public static boolean merge(NamedEntity a, NamedEntity b) {
-		// FIXME: temporarily loosen maxFrontDeletes and maxBackDeletes in 'a'
-		// using maxFrontDeletes and maxBackDeletes from 'b'
-		if (addAlias(a, b.key)) {
+		if (addAlias(a, b.key, b)) {
 			a.aliases.addAll(b.aliases);
-			// TODO: maxFrontDeletes and maxBackDeletes stuff
 			return true;
 		}
 		return false;
@@ -0,0 +1,189 @@
+package in.kevinj.analytics.networks;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the keys added most often using the space saving algorithm, in a
+ * fixed number of counters.
+ *
+ * Once every counter is taken, a new key replaces the key with the smallest
+ * count and takes over its count. So a key's count is never below its true
+ * count, and at most its error above it. Any key added more than
+ * {@link #getMinCount()} times is sure to be kept.
+ *
+ * The counters are kept in a binary min-heap, and found by key through an
+ * open addressing hash table.
+ */
+public class SpaceSaving {
+	private static final long FREE = -1;
+
+	private final int capacity;
+	// The heap, ordered by count.
+	private final long[] keys;
+	private final int[] counts;
+	private final int[] errors;
+	private int size;
+
+	// Key to position in the heap.
+	private final long[] table;
+	private final int[] positions;
+
+	/**
+	 * @param capacity the number of keys to keep
+	 */
+	public SpaceSaving(int capacity) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("Must keep at least one key");
+
+		this.capacity = capacity;
+		this.keys = new long[capacity];
+		this.counts = new int[capacity];
+		this.errors = new int[capacity];
+		int tableSize = 16;
+		while (tableSize / 2 < capacity)
+			tableSize *= 2;
+		this.table = new long[tableSize];
+		Arrays.fill(table, FREE);
+		this.positions = new int[tableSize];
+	}
+
+	private static int hash(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ h >>> 32);
+	}
+
+	private int find(long key) {
+		int mask = table.length - 1;
+		int slot = hash(key) & mask;
+		while (table[slot] != key && table[slot] != FREE)
+			slot = (slot + 1) & mask;
+		return slot;
+	}
+
+	/**
+	 * Removes a key from the hash table, shifting back the keys after it so
+	 * that no probe sequence is broken.
+	 *
+	 * @param slot
+	 */
+	private void remove(int slot) {
+		int mask = table.length - 1;
+		int free = slot;
+		for (int i = (slot + 1) & mask; table[i] != FREE; i = (i + 1) & mask) {
+			int home = hash(table[i]) & mask;
+			// Move the key back unless its home is between the free slot and
+			// where it is now.
+			if (free <= i ? home <= free || home > i : home <= free && home > i) {
+				table[free] = table[i];
+				positions[free] = positions[i];
+				free = i;
+			}
+		}
+		table[free] = FREE;
+	}
+
+	private void setPosition(long key, int position) {
+		positions[find(key)] = position;
+	}
+
+	private void swap(int a, int b) {
+		long key = keys[a];
+		keys[a] = keys[b];
+		keys[b] = key;
+		int count = counts[a];
+		counts[a] = counts[b];
+		counts[b] = count;
+		int error = errors[a];
+		errors[a] = errors[b];
+		errors[b] = error;
+		setPosition(keys[a], a);
+		setPosition(keys[b], b);
+	}
+
+	private void siftDown(int i) {
+		while (true) {
+			int smallest = i, left = 2 * i + 1, right = left + 1;
+			if (left < size && counts[left] < counts[smallest])
+				smallest = left;
+			if (right < size && counts[right] < counts[smallest])
+				smallest = right;
+			if (smallest == i)
+				return;
+			swap(i, smallest);
+			i = smallest;
+		}
+	}
+
+	private void siftUp(int i) {
+		while (i > 0 && counts[(i - 1) / 2] > counts[i]) {
+			swap(i, (i - 1) / 2);
+			i = (i - 1) / 2;
+		}
+	}
+
+	public void add(long key) {
+		int slot = find(key);
+		if (table[slot] != FREE) {
+			// Counts only grow, so the counter can only move down.
+			int i = positions[slot];
+			counts[i]++;
+			siftDown(i);
+		} else if (size < capacity) {
+			table[slot] = key;
+			positions[slot] = size;
+			keys[size] = key;
+			counts[size] = 1;
+			errors[size] = 0;
+			siftUp(size++);
+		} else {
+			// Replace the key with the smallest count.
+			remove(find(keys[0]));
+			slot = find(key);
+			table[slot] = key;
+			positions[slot] = 0;
+			keys[0] = key;
+			errors[0] = counts[0];
+			counts[0]++;
+			siftDown(0);
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return 0 until every counter is taken, since until then every key is
+	 * kept and counted exactly
+	 */
+	public int getMinCount() {
+		return size < capacity ? 0 : counts[0];
+	}
+
+	/**
+	 * The keys kept are at positions 0 to {@link #size()}, in no particular
+	 * order.
+	 *
+	 * @param i
+	 * @return
+	 */
+	public long getKey(int i) {
+		return keys[i];
+	}
+
+	/**
+	 * @param i
+	 * @return at least the true count
+	 */
+	public int getCount(int i) {
+		return counts[i];
+	}
+
+	/**
+	 * @param i
+	 * @return the most the count can be above the true count
+	 */
+	public int getError(int i) {
+		return errors[i];
+	}
+}